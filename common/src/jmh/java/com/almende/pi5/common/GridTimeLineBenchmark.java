@@ -0,0 +1,154 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares aggregating timeslot aligned forecasts as sparse power time lines,
+ * as scalar grids and as SIMD grids. Built by the "vector" profile; run from
+ * the common module with:
+ *
+ * <pre>
+ * mvn -Pvector test-compile exec:exec@jmh
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+public class GridTimeLineBenchmark {
+	private static final long	TIMESLOTLENGTH	= 15 * 60 * 1000;
+
+	/** Number of DER forecasts. */
+	@Param({ "10", "1000" })
+	public int					lines;
+
+	/** Number of timeslots per forecast (13 hours). */
+	@Param({ "53" })
+	public int					slots;
+
+	private DateTime			start;
+	private List<PowerTimeLine>	sparse;
+	private List<GridTimeLine>	grids;
+
+	/**
+	 * Random forecasts, all on the same timeslot grid.
+	 */
+	@Setup
+	public void setup() {
+		final Random random = new Random(42);
+		start = DateTime.parse("2016-01-01T00:00:00Z");
+		sparse = new ArrayList<PowerTimeLine>(lines);
+		grids = new ArrayList<GridTimeLine>(lines);
+		for (int i = 0; i < lines; i++) {
+			final long[] offsets = new long[slots];
+			final double[] values = new double[slots];
+			for (int j = 0; j < slots; j++) {
+				offsets[j] = (j - 1L) * TIMESLOTLENGTH;
+				values[j] = random.nextInt(2000);
+			}
+			final PowerTimeLine line = new PowerTimeLine(start);
+			line.appendSorted(offsets, values);
+			sparse.add(line);
+			grids.add(GridTimeLine.fromTimeLine(line, TIMESLOTLENGTH));
+		}
+	}
+
+	/**
+	 * K-way merge of the sparse lines.
+	 *
+	 * @return the sum
+	 */
+	@Benchmark
+	@Fork(1)
+	public PowerTimeLine sparseSum() {
+		return PowerTimeLine.sum(start, sparse);
+	}
+
+	/**
+	 * Dense sum, scalar loops.
+	 *
+	 * @return the sum
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "-Dpi5.gridmath=scalar" })
+	public GridTimeLine gridSumScalar() {
+		return GridTimeLine.sum(grids);
+	}
+
+	/**
+	 * Dense sum, Vector API.
+	 *
+	 * @return the sum
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "--add-modules",
+			"jdk.incubator.vector" })
+	public GridTimeLine gridSumVector() {
+		return GridTimeLine.sum(grids);
+	}
+
+	/**
+	 * Maximum of the sparse lines.
+	 *
+	 * @return the maximum
+	 */
+	@Benchmark
+	@Fork(1)
+	public PowerTimeLine sparseMax() {
+		return PowerTimeLine.maxOf(start, sparse);
+	}
+
+	/**
+	 * Element-wise maximum, scalar loops.
+	 *
+	 * @return the maximum
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "-Dpi5.gridmath=scalar" })
+	public GridTimeLine gridMaxScalar() {
+		return gridMax();
+	}
+
+	/**
+	 * Element-wise maximum, Vector API.
+	 *
+	 * @return the maximum
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = { "--add-modules",
+			"jdk.incubator.vector" })
+	public GridTimeLine gridMaxVector() {
+		return gridMax();
+	}
+
+	private GridTimeLine gridMax() {
+		final GridTimeLine first = grids.get(0);
+		final GridTimeLine result = new GridTimeLine(first.getStart(),
+				first.getStep(), first.getValues().clone());
+		for (final GridTimeLine grid : grids) {
+			result.max(grid);
+		}
+		return result;
+	}
+}
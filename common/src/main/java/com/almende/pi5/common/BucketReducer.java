@@ -0,0 +1,22 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+/**
+ * The Enum BucketReducer: how {@link PowerTimeLine#resample} reduces all
+ * values within one bucket to a single value.
+ */
+public enum BucketReducer {
+
+	/** The time weighted mean over the bucket. */
+	MEAN,
+	/** The maximum value within the bucket. */
+	MAX,
+	/** The minimum value within the bucket. */
+	MIN,
+	/** The value at the end of the bucket. */
+	LAST;
+
+}
@@ -1,12 +1,32 @@
 package com.almende.pi5.common;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * The Class categoryReport.
+ * Within this package, each line can also be carried as a
+ * {@link GridTimeLine}, as the partial sums of {@link PowerProfile#sumAll}
+ * are. Those are converted to {@link PowerTimeLine}s with the timestamp of
+ * the profile (see {@link #materialize}) before the profile is returned, so
+ * the getters never return null.
  */
 public class CategoryProfile {
+	static final int		DEMAND	= 0;
+	static final int		MAX		= 1;
+	static final int		MIN		= 2;
+
 	private PowerTimeLine	demand							= new PowerTimeLine();
 	private PowerTimeLine	expectedFlexibilityMaxInWatts	= new PowerTimeLine();
 	private PowerTimeLine	expectedFlexibilityMinInWatts	= new PowerTimeLine();
+	private GridTimeLine	demandGrid						= null;
+	private GridTimeLine	maxGrid							= null;
+	private GridTimeLine	minGrid							= null;
 
 	/**
 	 * Instantiates a new category report.
@@ -30,6 +50,7 @@ public class CategoryProfile {
 	 */
 	public void setDemand(PowerTimeLine demand) {
 		this.demand = demand;
+		this.demandGrid = null;
 	}
 
 	/**
@@ -50,6 +71,7 @@ public class CategoryProfile {
 	public void setExpectedFlexibilityMaxInWatts(
 			final PowerTimeLine expectedFlexibilityMaxInWatts) {
 		this.expectedFlexibilityMaxInWatts = expectedFlexibilityMaxInWatts;
+		this.maxGrid = null;
 	}
 
 	/**
@@ -70,5 +92,272 @@ public class CategoryProfile {
 	public void setExpectedFlexibilityMinInWatts(
 			final PowerTimeLine expectedFlexibilityMinInWatts) {
 		this.expectedFlexibilityMinInWatts = expectedFlexibilityMinInWatts;
+		this.minGrid = null;
+	}
+
+	/**
+	 * Gets the demand as grid, if it is carried as grid or lies on a grid of
+	 * the given step.
+	 *
+	 * @param step
+	 *            the step size in milliseconds
+	 * @return the demand grid, or null
+	 */
+	@JsonIgnore
+	public GridTimeLine getDemandGrid(final long step) {
+		return grid(demandGrid, demand, step);
+	}
+
+	/**
+	 * Gets the expected flexibility max as grid, see
+	 * {@link #getDemandGrid(long)}.
+	 *
+	 * @param step
+	 *            the step size in milliseconds
+	 * @return the expected flexibility max grid, or null
+	 */
+	@JsonIgnore
+	public GridTimeLine getExpectedFlexibilityMaxGrid(final long step) {
+		return grid(maxGrid, expectedFlexibilityMaxInWatts, step);
+	}
+
+	/**
+	 * Gets the expected flexibility min as grid, see
+	 * {@link #getDemandGrid(long)}.
+	 *
+	 * @param step
+	 *            the step size in milliseconds
+	 * @return the expected flexibility min grid, or null
+	 */
+	@JsonIgnore
+	public GridTimeLine getExpectedFlexibilityMinGrid(final long step) {
+		return grid(minGrid, expectedFlexibilityMinInWatts, step);
+	}
+
+	private static GridTimeLine grid(final GridTimeLine grid,
+			final PowerTimeLine line, final long step) {
+		if (grid != null) {
+			return grid.getStep() == step ? grid : null;
+		}
+		return GridTimeLine.fromTimeLine(line, step);
+	}
+
+	/**
+	 * Convert the lines that are carried as grid to power time lines with the
+	 * given timestamp, compacted.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the profile
+	 */
+	void materialize(final DateTime timestamp) {
+		for (int kind = DEMAND; kind <= MIN; kind++) {
+			final GridTimeLine grid = getCarriedGrid(kind);
+			if (grid != null) {
+				setLine(kind, grid.toTimeLine(timestamp).compact());
+			}
+		}
+	}
+
+	/**
+	 * The line of the given kind, converted as by {@link #materialize} if it
+	 * is carried as grid. This profile isn't changed.
+	 */
+	private PowerTimeLine lineOf(final int kind, final DateTime timestamp) {
+		final GridTimeLine grid = getCarriedGrid(kind);
+		return grid == null ? getLine(kind) : grid.toTimeLine(timestamp)
+				.compact();
+	}
+
+	/**
+	 * Sum one kind of line of the given profiles into a new profile that only
+	 * has that kind: as dense grid if all non-empty lines of that kind lie on
+	 * the same grid of the given step, otherwise as power time line. The
+	 * other kinds of the result are empty.
+	 *
+	 * @param kind
+	 *            the kind of line
+	 * @param timestamp
+	 *            the timestamp of a merged power time line
+	 * @param profiles
+	 *            the profiles
+	 * @param step
+	 *            the step size in milliseconds
+	 * @return the sum
+	 */
+	static CategoryProfile sumLine(final int kind, final DateTime timestamp,
+			final Collection<CategoryProfile> profiles, final long step) {
+		final CategoryProfile result = new CategoryProfile();
+		final GridTimeLine sum = denseSum(kind, profiles, step,
+				new ArrayList<GridTimeLine>(profiles.size()));
+		if (sum != null) {
+			result.setGrid(kind, sum);
+			return result;
+		}
+		final List<PowerTimeLine> lines = new ArrayList<PowerTimeLine>(
+				profiles.size());
+		for (final CategoryProfile profile : profiles) {
+			lines.add(profile.lineOf(kind, timestamp));
+		}
+		result.setLine(kind, PowerTimeLine.sum(timestamp, lines));
+		return result;
+	}
+
+	/**
+	 * The sum as dense grid of one kind of line of the given profiles, or
+	 * null if their non-empty lines don't all lie on the same grid of the
+	 * given step. The grids list is used as scratch space.
+	 */
+	private static GridTimeLine denseSum(final int kind,
+			final Collection<CategoryProfile> profiles, final long step,
+			final List<GridTimeLine> grids) {
+		grids.clear();
+		for (final CategoryProfile profile : profiles) {
+			final GridTimeLine grid = profile.getGrid(kind, step);
+			if (grid == null) {
+				final PowerTimeLine line = profile.getLine(kind);
+				if (line != null && line.size() == 0) {
+					continue;
+				}
+				return null;
+			}
+			if (!grids.isEmpty() && !grids.get(0).isAligned(grid)) {
+				return null;
+			}
+			grids.add(grid);
+		}
+		return GridTimeLine.sum(grids);
+	}
+
+	/**
+	 * Create a proposal for the given demand within these flexibility bounds,
+	 * in one sweep over the three lines: the demand, and the maximum and
+	 * minimum widened to include the demand, all limited to the window from
+	 * (inclusive) until (exclusive) and compacted. The result is the same as
+	 * {@link PowerTimeLine#clamp(PowerTimeLine, PowerTimeLine, long, long)}
+	 * for each line, with the demand as bound of the maximum and minimum.
+	 *
+	 * @param demand
+	 *            the proposed demand
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the proposal
+	 */
+	public CategoryProfile clampProposal(final PowerTimeLine demand,
+			final long from, final long until) {
+		if (until < from) {
+			throw new IllegalArgumentException("Window ends ("
+					+ new DateTime(until) + ") before it starts ("
+					+ new DateTime(from) + ")");
+		}
+		final PowerTimeLine max = getExpectedFlexibilityMaxInWatts();
+		final PowerTimeLine min = getExpectedFlexibilityMinInWatts();
+		final DateTime timestamp = demand.getTimestamp();
+		final long base = timestamp.getMillis();
+		final PowerTimeLine[] lines = new PowerTimeLine[] { demand, max, min };
+		final PowerTimeLine[] results = new PowerTimeLine[3];
+		for (int kind = DEMAND; kind <= MIN; kind++) {
+			// Only empty if the line and the demand are both empty
+			final boolean empty = lines[kind].size() == 0
+					&& (kind == DEMAND || demand.size() == 0);
+			results[kind] = empty ? null : new PowerTimeLine(timestamp);
+		}
+		final boolean hasDemand = demand.size() > 0;
+		final PowerTimeLine.Sweep sweep = new PowerTimeLine.Sweep(lines);
+		for (long time = from; time < until; time = sweep.nextChange()) {
+			sweep.moveTo(time);
+			final double value = sweep.value(DEMAND);
+			double high = sweep.value(MAX);
+			double low = sweep.value(MIN);
+			if (hasDemand) {
+				high = Math.max(high, value);
+				low = Math.min(low, value);
+			}
+			if (results[DEMAND] != null) {
+				results[DEMAND].appendCompact(time - base, value);
+			}
+			if (results[MAX] != null) {
+				results[MAX].appendCompact(time - base, high);
+			}
+			if (results[MIN] != null) {
+				results[MIN].appendCompact(time - base, low);
+			}
+		}
+		final CategoryProfile result = new CategoryProfile();
+		for (int kind = DEMAND; kind <= MIN; kind++) {
+			if (results[kind] == null) {
+				results[kind] = new PowerTimeLine(timestamp);
+			} else {
+				results[kind].appendCompact(until - base, 0);
+			}
+			result.setLine(kind, results[kind]);
+		}
+		return result;
+	}
+
+	private GridTimeLine getGrid(final int kind, final long step) {
+		switch (kind) {
+			case DEMAND:
+				return getDemandGrid(step);
+			case MAX:
+				return getExpectedFlexibilityMaxGrid(step);
+			default:
+				return getExpectedFlexibilityMinGrid(step);
+		}
+	}
+
+	private GridTimeLine getCarriedGrid(final int kind) {
+		switch (kind) {
+			case DEMAND:
+				return demandGrid;
+			case MAX:
+				return maxGrid;
+			default:
+				return minGrid;
+		}
+	}
+
+	/**
+	 * Carry the line of the given kind as grid, until {@link #materialize}.
+	 */
+	private void setGrid(final int kind, final GridTimeLine grid) {
+		switch (kind) {
+			case DEMAND:
+				demandGrid = grid;
+				demand = null;
+				break;
+			case MAX:
+				maxGrid = grid;
+				expectedFlexibilityMaxInWatts = null;
+				break;
+			default:
+				minGrid = grid;
+				expectedFlexibilityMinInWatts = null;
+		}
+	}
+
+	PowerTimeLine getLine(final int kind) {
+		switch (kind) {
+			case DEMAND:
+				return getDemand();
+			case MAX:
+				return getExpectedFlexibilityMaxInWatts();
+			default:
+				return getExpectedFlexibilityMinInWatts();
+		}
+	}
+
+	void setLine(final int kind, final PowerTimeLine line) {
+		switch (kind) {
+			case DEMAND:
+				setDemand(line);
+				break;
+			case MAX:
+				setExpectedFlexibilityMaxInWatts(line);
+				break;
+			default:
+				setExpectedFlexibilityMinInWatts(line);
+		}
 	}
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The element-wise array operations behind {@link GridTimeLine}. This class is
+ * the plain scalar implementation. When built with the "vector" profile on a
+ * newer JDK, and running with the jdk.incubator.vector module, a SIMD
+ * implementation (VectorGridMath) is used instead. Setting the system property
+ * "pi5.gridmath" to "scalar" forces the scalar implementation.
+ */
+class GridMath {
+	private static final Logger		LOG			= Logger.getLogger(GridMath.class
+															.getName());
+	private static final String		VECTOR		= "com.almende.pi5.common.VectorGridMath";
+
+	/** The implementation in use. */
+	static final GridMath			INSTANCE	= load();
+
+	/**
+	 * The element-wise operations.
+	 */
+	enum Op {
+		/** left + right */
+		ADD,
+		/** left - right */
+		MINUS,
+		/** left * right */
+		MULTI,
+		/** Math.max(left, right) */
+		MAX,
+		/** Math.min(left, right) */
+		MIN;
+	}
+
+	/**
+	 * target[targetFrom + i] = op(target[targetFrom + i], source[sourceFrom +
+	 * i]), for i from 0 until length.
+	 */
+	void apply(final Op op, final double[] target, final int targetFrom,
+			final double[] source, final int sourceFrom, final int length) {
+		for (int i = 0; i < length; i++) {
+			target[targetFrom + i] = apply(op, target[targetFrom + i],
+					source[sourceFrom + i]);
+		}
+	}
+
+	/**
+	 * target[from + i] = op(target[from + i], value), for i from 0 until
+	 * length.
+	 */
+	void apply(final Op op, final double[] target, final int from,
+			final int length, final double value) {
+		for (int i = from; i < from + length; i++) {
+			target[i] = apply(op, target[i], value);
+		}
+	}
+
+	static double apply(final Op op, final double left, final double right) {
+		switch (op) {
+			case ADD:
+				return left + right;
+			case MINUS:
+				return left - right;
+			case MULTI:
+				return left * right;
+			case MAX:
+				return Math.max(left, right);
+			default:
+				return Math.min(left, right);
+		}
+	}
+
+	private static GridMath load() {
+		if (!"scalar".equals(System.getProperty("pi5.gridmath"))) {
+			try {
+				final GridMath vector = (GridMath) Class.forName(VECTOR)
+						.getDeclaredConstructor().newInstance();
+				// Fails if the vector module isn't available at runtime
+				vector.apply(Op.ADD, new double[1], 0, new double[1], 0, 1);
+				return vector;
+			} catch (final ClassNotFoundException e) {
+				// Not built with the vector profile.
+			} catch (final ReflectiveOperationException e) {
+				LOG.log(Level.FINE, "Vector API not available, using scalar "
+						+ "grid math", e);
+			} catch (final LinkageError e) {
+				LOG.log(Level.FINE, "Vector API not available, using scalar "
+						+ "grid math", e);
+			}
+		}
+		return new GridMath();
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.joda.time.DateTime;
+
+/**
+ * The Class GridTimeLine.
+ * A dense timeline with one value per fixed size step (e.g. a 15 minute
+ * timeslot), starting at start. Like {@link PowerTimeLine} it is zero before
+ * its start, and its last value holds after its end. Finding the slot of a
+ * time is O(1), and the element-wise operations are plain loops over the
+ * value arrays.
+ * Two grids can only be combined if they are aligned: the same step, and
+ * starts a whole number of steps apart.
+ */
+public final class GridTimeLine {
+	private static final double[]	NO_VALUES	= new double[0];
+
+	private long					start;
+	private final long				step;
+	private double[]				values;
+
+	/**
+	 * Instantiates a new grid time line, taking ownership of the values array.
+	 *
+	 * @param start
+	 *            the start of the first slot, in milliseconds since the epoch
+	 * @param step
+	 *            the step size in milliseconds
+	 * @param values
+	 *            the value of each slot (Watt)
+	 */
+	public GridTimeLine(final long start, final long step,
+			final double[] values) {
+		if (step <= 0) {
+			throw new IllegalArgumentException("Step must be positive, got "
+					+ step);
+		}
+		this.start = start;
+		this.step = step;
+		this.values = values == null ? NO_VALUES : values;
+	}
+
+	/**
+	 * Convert a power time line to a grid, if all its points lie on a grid of
+	 * the given step. Otherwise, or if the line is empty, null is returned.
+	 *
+	 * @param line
+	 *            the line
+	 * @param step
+	 *            the step size in milliseconds
+	 * @return the grid time line, or null
+	 */
+	public static GridTimeLine fromTimeLine(final PowerTimeLine line,
+			final long step) {
+		final int size = line.size();
+		if (size == 0 || step <= 0) {
+			return null;
+		}
+		final long first = line.timeAt(0);
+		final long span = line.timeAt(size - 1) - first;
+		if (span % step != 0 || span / step >= Integer.MAX_VALUE) {
+			return null;
+		}
+		// Check all points before allocating, most lines that are not on the
+		// grid fail here
+		for (int i = 1; i < size - 1; i++) {
+			if ((line.timeAt(i) - first) % step != 0) {
+				return null;
+			}
+		}
+		final double[] values = new double[(int) (span / step) + 1];
+		int slot = 0;
+		for (int i = 0; i < size; i++) {
+			final int next = (int) ((line.timeAt(i) - first) / step);
+			if (slot < next) {
+				// No change in between: the previous value holds
+				final double previous = values[slot];
+				while (++slot < next) {
+					values[slot] = previous;
+				}
+			}
+			values[slot] = line.valueAt(i);
+		}
+		return new GridTimeLine(first, step, values);
+	}
+
+	/**
+	 * Convert to a power time line, with one point per slot, and the start as
+	 * timestamp.
+	 *
+	 * @return the power time line
+	 */
+	public PowerTimeLine toTimeLine() {
+		return toTimeLine(new DateTime(start));
+	}
+
+	/**
+	 * Convert to a power time line, with one point per slot.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the power time line
+	 * @return the power time line
+	 */
+	public PowerTimeLine toTimeLine(final DateTime timestamp) {
+		final long first = start - timestamp.getMillis();
+		final long[] offsets = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			offsets[i] = first + i * step;
+		}
+		return new PowerTimeLine(timestamp, offsets, values.clone(),
+				values.length);
+	}
+
+	/**
+	 * Gets the start of the first slot.
+	 *
+	 * @return the start, in milliseconds since the epoch
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Gets the step size.
+	 *
+	 * @return the step size in milliseconds
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Gets the end of the last slot.
+	 *
+	 * @return the end, in milliseconds since the epoch
+	 */
+	public long getEnd() {
+		return start + values.length * step;
+	}
+
+	/**
+	 * Gets the values, one per slot. This is the backing array, not a copy.
+	 *
+	 * @return the values
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * The number of slots.
+	 *
+	 * @return the number of slots
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * The slot holding the given time. Negative before the start, and size or
+	 * more after the end.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the slot
+	 */
+	public long slotOf(final long time) {
+		final long offset = time - start;
+		return offset >= 0 ? offset / step : -((step - 1 - offset) / step);
+	}
+
+	/**
+	 * Gets the value at the given time.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the value (Watt)
+	 */
+	public double getValueAt(final long time) {
+		final long slot = slotOf(time);
+		if (slot < 0 || values.length == 0) {
+			return 0;
+		}
+		return slot < values.length ? values[(int) slot]
+				: values[values.length - 1];
+	}
+
+	/**
+	 * Checks if the other grid is aligned with this grid.
+	 *
+	 * @param other
+	 *            the other
+	 * @return true, if aligned
+	 */
+	public boolean isAligned(final GridTimeLine other) {
+		return step == other.step && (start - other.start) % step == 0;
+	}
+
+	/**
+	 * Add the other grid to this grid, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public GridTimeLine add(final GridTimeLine other) {
+		return operation(GridMath.Op.ADD, other);
+	}
+
+	/**
+	 * Subtract the other grid from this grid, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public GridTimeLine minus(final GridTimeLine other) {
+		return operation(GridMath.Op.MINUS, other);
+	}
+
+	/**
+	 * Multiply this grid by the other grid, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public GridTimeLine multi(final GridTimeLine other) {
+		return operation(GridMath.Op.MULTI, other);
+	}
+
+	/**
+	 * Maximum of this and the other grid, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public GridTimeLine max(final GridTimeLine other) {
+		return operation(GridMath.Op.MAX, other);
+	}
+
+	/**
+	 * Minimum of this and the other grid, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public GridTimeLine min(final GridTimeLine other) {
+		return operation(GridMath.Op.MIN, other);
+	}
+
+	/**
+	 * Sum all given grids into a new grid, in one pass over each grid's
+	 * values. Empty grids are skipped.
+	 *
+	 * @param grids
+	 *            the grids, all aligned
+	 * @return the sum, or null if all grids are empty
+	 */
+	public static GridTimeLine sum(final Collection<GridTimeLine> grids) {
+		GridTimeLine first = null;
+		long end = Long.MIN_VALUE;
+		long start = Long.MAX_VALUE;
+		for (final GridTimeLine grid : grids) {
+			if (grid.values.length == 0) {
+				continue;
+			}
+			if (first == null) {
+				first = grid;
+			} else if (!first.isAligned(grid)) {
+				throw new IllegalArgumentException("Grid starting at "
+						+ grid.start + " with step " + grid.step
+						+ " is not aligned with grid starting at "
+						+ first.start + " with step " + first.step);
+			}
+			start = Math.min(start, grid.start);
+			end = Math.max(end, grid.getEnd());
+		}
+		if (first == null) {
+			return null;
+		}
+		final long step = first.step;
+		final int size = (int) ((end - start) / step);
+		final double[] result = new double[size];
+		// After its end, each grid adds its last value to all later slots
+		final double[] tail = new double[size + 1];
+		for (final GridTimeLine grid : grids) {
+			final int length = grid.values.length;
+			if (length == 0) {
+				continue;
+			}
+			final int offset = (int) ((grid.start - start) / step);
+			GridMath.INSTANCE.apply(GridMath.Op.ADD, result, offset,
+					grid.values, 0, length);
+			tail[offset + length] += grid.values[length - 1];
+		}
+		double running = 0;
+		for (int i = 0; i < size; i++) {
+			running += tail[i];
+			result[i] += running;
+		}
+		return new GridTimeLine(start, step, result);
+	}
+
+	/**
+	 * Combine the other grid into this one, element-wise. Like in
+	 * {@link PowerTimeLine}, an empty other grid leaves this grid untouched.
+	 */
+	private GridTimeLine operation(final GridMath.Op op,
+			final GridTimeLine other) {
+		final int otherLength = other.values.length;
+		if (otherLength == 0) {
+			return this;
+		}
+		if (!isAligned(other)) {
+			throw new IllegalArgumentException("Grid starting at "
+					+ other.start + " with step " + other.step
+					+ " is not aligned with grid starting at " + start
+					+ " with step " + step);
+		}
+		final int length = values.length;
+		final long newStart = (length == 0) ? other.start : Math.min(start,
+				other.start);
+		final long newEnd = (length == 0) ? other.getEnd() : Math.max(
+				getEnd(), other.getEnd());
+		final int size = (int) ((newEnd - newStart) / step);
+		final int theirs = (int) ((other.start - newStart) / step);
+
+		// This grid, extended to the new range
+		double[] result = values;
+		if (length == 0) {
+			result = new double[size];
+		} else if (newStart != start || size != length) {
+			final int mine = (int) ((start - newStart) / step);
+			result = new double[size];
+			System.arraycopy(values, 0, result, mine, length);
+			Arrays.fill(result, mine + length, size, values[length - 1]);
+		}
+		// The other grid is zero before its start, and its last value holds
+		// after its end.
+		final GridMath math = GridMath.INSTANCE;
+		math.apply(op, result, 0, theirs, 0);
+		math.apply(op, result, theirs, other.values, 0, otherLength);
+		math.apply(op, result, theirs + otherLength, size - theirs
+				- otherLength, other.values[otherLength - 1]);
+
+		this.start = newStart;
+		this.values = result;
+		return this;
+	}
+}
@@ -0,0 +1,626 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The Class ImmutablePowerTimeLine.
+ * An immutable {@link PowerTimeLine}: every edit returns a new timeline and
+ * leaves this one untouched, so it can be shared between threads and
+ * serialized without locks or copies.
+ * The series is stored in chunks of at most a few dozen points, holding
+ * absolute times (milliseconds since the epoch). An edit only copies the
+ * chunks it touches, and a neighbour if the edited chunk becomes too small;
+ * all other chunks are shared with the original. Changing the timestamp
+ * doesn't copy any points at all.
+ * The JSON representation is the same as that of {@link PowerTimeLine}.
+ */
+public final class ImmutablePowerTimeLine {
+	private static final int		CHUNK_SIZE	= 64;
+	/* Edits take in neighbouring chunks until they have at least this size */
+	private static final int		MIN_CHUNK_SIZE	= CHUNK_SIZE / 4;
+	private static final Chunk[]	NO_CHUNKS	= new Chunk[0];
+	private static final int[]		NO_STARTS	= new int[0];
+
+	private final DateTime			timestamp;
+	private final Chunk[]			chunks;
+	/* Index of the first point of each chunk */
+	private final int[]				starts;
+	private final int				size;
+
+	/**
+	 * Instantiates a new, empty, immutable power time line.
+	 *
+	 * @param timestamp
+	 *            the timestamp
+	 */
+	public ImmutablePowerTimeLine(final DateTime timestamp) {
+		this(timestamp, NO_CHUNKS);
+	}
+
+	private ImmutablePowerTimeLine(final DateTime timestamp,
+			final Chunk[] chunks) {
+		this.timestamp = timestamp;
+		this.chunks = chunks;
+		if (chunks.length == 0) {
+			this.starts = NO_STARTS;
+			this.size = 0;
+		} else {
+			this.starts = new int[chunks.length];
+			int count = 0;
+			for (int i = 0; i < chunks.length; i++) {
+				this.starts[i] = count;
+				count += chunks[i].times.length;
+			}
+			this.size = count;
+		}
+	}
+
+	/**
+	 * Create an immutable power time line from its JSON representation.
+	 *
+	 * @param timestamp
+	 *            the timestamp
+	 * @param series
+	 *            the series
+	 * @return the immutable power time line
+	 */
+	@JsonCreator
+	public static ImmutablePowerTimeLine fromJson(
+			@JsonProperty("timestamp") final DateTime timestamp,
+			@JsonProperty("series") final List<PowerTime> series) {
+		final DateTime ts = timestamp == null ? DateTime.now() : timestamp;
+		if (series == null || series.isEmpty()) {
+			return new ImmutablePowerTimeLine(ts);
+		}
+		final int size = series.size();
+		final long[] offsets = new long[size];
+		final double[] values = new double[size];
+		for (int i = 0; i < size; i++) {
+			offsets[i] = series.get(i).getOffset();
+			values[i] = series.get(i).getValue();
+		}
+		return of(ts, offsets, values, size);
+	}
+
+	/**
+	 * Create an immutable power time line from the first size points of the
+	 * given offsets (relative to the timestamp) and values.
+	 */
+	static ImmutablePowerTimeLine of(final DateTime timestamp,
+			final long[] offsets, final double[] values, final int size) {
+		final long base = timestamp.getMillis();
+		final long[] times = new long[size];
+		for (int i = 0; i < size; i++) {
+			times[i] = base + offsets[i];
+		}
+		return new ImmutablePowerTimeLine(timestamp, chunk(times, values, 0,
+				size, NO_CHUNKS, 0, 0, NO_CHUNKS, 0));
+	}
+
+	/**
+	 * Convert to a new, mutable, power time line.
+	 *
+	 * @return the power time line
+	 */
+	public PowerTimeLine toMutable() {
+		final long base = timestamp.getMillis();
+		final long[] offsets = new long[size];
+		final double[] values = new double[size];
+		for (int i = 0; i < chunks.length; i++) {
+			final Chunk chunk = chunks[i];
+			for (int j = 0; j < chunk.times.length; j++) {
+				offsets[starts[i] + j] = chunk.times[j] - base;
+			}
+			System.arraycopy(chunk.values, 0, values, starts[i],
+					chunk.values.length);
+		}
+		return new PowerTimeLine(timestamp, offsets, values, size);
+	}
+
+	/**
+	 * Gets the timestamp.
+	 *
+	 * @return the timestamp
+	 */
+	public DateTime getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Gets the series, as a new list.
+	 *
+	 * @return the series
+	 */
+	public ArrayList<PowerTime> getSeries() {
+		final long base = timestamp.getMillis();
+		final ArrayList<PowerTime> result = new ArrayList<PowerTime>(size);
+		for (final Chunk chunk : chunks) {
+			for (int j = 0; j < chunk.times.length; j++) {
+				result.add(new PowerTime(chunk.times[j] - base,
+						chunk.values[j]));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The number of points in the series.
+	 *
+	 * @return the number of points
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the value at.
+	 *
+	 * @param timestamp
+	 *            the timestamp
+	 * @return the value at
+	 */
+	@JsonIgnore
+	public double getValueAt(final DateTime timestamp) {
+		return getValueAt(timestamp.getMillis());
+	}
+
+	/**
+	 * Gets the value at.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the value at
+	 */
+	@JsonIgnore
+	public double getValueAt(final long time) {
+		return valueBefore(upperBound(time));
+	}
+
+	/**
+	 * Gets the integral (energy in Joule) between from and until.
+	 *
+	 * @param from
+	 *            the from time, in milliseconds since the epoch
+	 * @param until
+	 *            the until time, in milliseconds since the epoch
+	 * @return the integral
+	 */
+	@JsonIgnore
+	public double getIntegral(final long from, final long until) {
+		if (until < from) {
+			return -getIntegral(until, from);
+		}
+		final int index = upperBound(from);
+		double value = valueBefore(index);
+		long time = from;
+		double result = 0;
+		int chunk = (index < size) ? chunkOf(index) : chunks.length;
+		int point = (index < size) ? index - starts[chunk] : 0;
+		while (chunk < chunks.length && chunks[chunk].times[point] < until) {
+			final long next = chunks[chunk].times[point];
+			result += value * (next - time);
+			time = next;
+			value = chunks[chunk].values[point];
+			if (++point == chunks[chunk].times.length) {
+				chunk++;
+				point = 0;
+			}
+		}
+		result += value * (until - time);
+		return result / 1000.0;
+	}
+
+	/**
+	 * With timestamp, keeping all points at the same moment in time. No points
+	 * are copied.
+	 *
+	 * @param timestamp
+	 *            the timestamp
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withTimestamp(final DateTime timestamp) {
+		return new ImmutablePowerTimeLine(timestamp, chunks);
+	}
+
+	/**
+	 * With timestamp, see {@link #withTimestamp(DateTime)}. The new timestamp
+	 * keeps the time zone of the current one.
+	 *
+	 * @param time
+	 *            the timestamp, in milliseconds since the epoch
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withTimestamp(final long time) {
+		return withTimestamp(timestamp.withMillis(time));
+	}
+
+	/**
+	 * With the value at the given time, see
+	 * {@link PowerTimeLine#addValueAt(DateTime, double)}.
+	 *
+	 * @param timestamp
+	 *            the timestamp
+	 * @param value
+	 *            the value
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withValueAt(final DateTime timestamp,
+			final double value) {
+		return withValueAt(timestamp.getMillis(), value);
+	}
+
+	/**
+	 * With the value at the given time, see
+	 * {@link PowerTimeLine#addValueAt(long, double)}.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @param value
+	 *            the value
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withValueAt(final long time,
+			final double value) {
+		final int index = lowerBound(time);
+		final int to = (index < size && timeAt(index) == time) ? index + 1
+				: index;
+		return splice(index, to, new long[] { time }, new double[] { value });
+	}
+
+	/**
+	 * With zero between start (inclusive) and end (exclusive), see
+	 * {@link PowerTimeLine#zeroBetween(DateTime, DateTime)}.
+	 *
+	 * @param start
+	 *            the start
+	 * @param end
+	 *            the end
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroBetween(final DateTime start,
+			final DateTime end) {
+		return withZeroBetween(start.getMillis(), end.getMillis());
+	}
+
+	/**
+	 * With zero between start (inclusive) and end (exclusive), see
+	 * {@link PowerTimeLine#zeroBetween(long, long)}.
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroBetween(final long start,
+			final long end) {
+		if (size == 0) {
+			return this;
+		}
+		final int from = lowerBound(start);
+		final int to = Math.max(from, upperBound(end));
+		return splice(from, to, new long[] { start, end }, new double[] { 0,
+				valueBefore(to) });
+	}
+
+	/**
+	 * With zero starting at start (inclusive), see
+	 * {@link PowerTimeLine#zeroFrom(DateTime)}.
+	 *
+	 * @param start
+	 *            the start
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroFrom(final DateTime start) {
+		return withZeroFrom(start.getMillis());
+	}
+
+	/**
+	 * With zero starting at start (inclusive), see
+	 * {@link PowerTimeLine#zeroFrom(long)}.
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroFrom(final long start) {
+		if (size == 0) {
+			return this;
+		}
+		return splice(lowerBound(start), size, new long[] { start },
+				new double[] { 0 });
+	}
+
+	/**
+	 * With zero before start (exclusive), see
+	 * {@link PowerTimeLine#zeroBefore(DateTime)}.
+	 *
+	 * @param start
+	 *            the start
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroBefore(final DateTime start) {
+		return withZeroBefore(start.getMillis());
+	}
+
+	/**
+	 * With zero before start (exclusive), see
+	 * {@link PowerTimeLine#zeroBefore(long)}.
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withZeroBefore(final long start) {
+		if (size == 0) {
+			return this;
+		}
+		final int to = upperBound(start);
+		return splice(0, to, new long[] { start },
+				new double[] { valueBefore(to) });
+	}
+
+	/**
+	 * With the other timeline merged in between start and end, see
+	 * {@link PowerTimeLine#merge(PowerTimeLine, DateTime, DateTime)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @param start
+	 *            the start
+	 * @param end
+	 *            the end
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withMerge(
+			final ImmutablePowerTimeLine other, final DateTime start,
+			final DateTime end) {
+		return withMerge(other, start.getMillis(), end.getMillis());
+	}
+
+	/**
+	 * With the other timeline merged in between start and end, see
+	 * {@link PowerTimeLine#merge(PowerTimeLine, long, long)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @param startTime
+	 *            the start, in milliseconds since the epoch
+	 * @param endTime
+	 *            the end, in milliseconds since the epoch
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine withMerge(
+			final ImmutablePowerTimeLine other, final long startTime,
+			final long endTime) {
+		if (other.size == 0 || endTime <= startTime) {
+			return withZeroBetween(startTime, endTime);
+		}
+		final int otherFrom = other.upperBound(startTime);
+		final int otherTo = other.lowerBound(endTime);
+		final int count = otherTo - otherFrom;
+		final long[] times = new long[count + 2];
+		final double[] values = new double[count + 2];
+		times[0] = startTime;
+		values[0] = other.valueBefore(otherFrom);
+		for (int i = 0; i < count; i++) {
+			times[i + 1] = other.timeAt(otherFrom + i);
+			values[i + 1] = other.valueAt(otherFrom + i);
+		}
+		final int from = lowerBound(startTime);
+		final int to = upperBound(endTime);
+		times[count + 1] = endTime;
+		values[count + 1] = valueBefore(to);
+		return splice(from, to, times, values);
+	}
+
+	@Override
+	public String toString() {
+		return JOM.getInstance().valueToTree(this).toString();
+	}
+
+	/**
+	 * Replace the points with index from (inclusive) to (exclusive) by the
+	 * given points. Only the chunks holding from and to are copied, all others
+	 * are shared with this timeline. If that leaves too few points for a chunk
+	 * of their own, neighbouring chunks are taken in as well, so repeated
+	 * edits don't fragment the timeline into many small chunks.
+	 */
+	private ImmutablePowerTimeLine splice(final int from, final int to,
+			final long[] times, final double[] values) {
+		if (chunks.length == 0) {
+			return new ImmutablePowerTimeLine(timestamp, chunk(times, values,
+					0, times.length, NO_CHUNKS, 0, 0, NO_CHUNKS, 0));
+		}
+		int first = chunkOf(Math.min(from, size - 1));
+		int last = (to > from) ? chunkOf(to - 1) : first;
+		int count = starts[last] + chunks[last].times.length - starts[first]
+				- (to - from) + times.length;
+		while (count < MIN_CHUNK_SIZE) {
+			if (first > 0) {
+				first--;
+				count += chunks[first].times.length;
+			} else if (last + 1 < chunks.length) {
+				last++;
+				count += chunks[last].times.length;
+			} else {
+				break;
+			}
+		}
+
+		// Collect the untouched points of the rebuilt chunks around the
+		// inserted points.
+		final int head = from - starts[first];
+		final int tail = starts[last] + chunks[last].times.length - to;
+		final long[] newTimes = new long[count];
+		final double[] newValues = new double[count];
+		copy(starts[first], from, newTimes, newValues, 0);
+		System.arraycopy(times, 0, newTimes, head, times.length);
+		System.arraycopy(values, 0, newValues, head, values.length);
+		copy(to, to + tail, newTimes, newValues, head + times.length);
+
+		return new ImmutablePowerTimeLine(timestamp, chunk(newTimes,
+				newValues, 0, count, chunks, 0, first, chunks, last + 1));
+	}
+
+	/**
+	 * Copy the points with index from (inclusive) to (exclusive) into the
+	 * given arrays, starting at offset.
+	 */
+	private void copy(final int from, final int to, final long[] times,
+			final double[] values, final int offset) {
+		int index = from;
+		while (index < to) {
+			final int chunk = chunkOf(index);
+			final int start = index - starts[chunk];
+			final int count = Math.min(chunks[chunk].times.length - start, to
+					- index);
+			System.arraycopy(chunks[chunk].times, start, times, offset + index
+					- from, count);
+			System.arraycopy(chunks[chunk].values, start, values, offset
+					+ index - from, count);
+			index += count;
+		}
+	}
+
+	/**
+	 * The number of chunks, for tests.
+	 */
+	int chunkCount() {
+		return chunks.length;
+	}
+
+	/**
+	 * Build a chunk array of before[beforeFrom, beforeTo), the given points
+	 * split into evenly sized chunks, and after[afterFrom, ...).
+	 */
+	private static Chunk[] chunk(final long[] times, final double[] values,
+			final int from, final int to, final Chunk[] before,
+			final int beforeFrom, final int beforeTo, final Chunk[] after,
+			final int afterFrom) {
+		final int count = to - from;
+		final int parts = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final int nofBefore = beforeTo - beforeFrom;
+		final int nofAfter = after.length - afterFrom;
+		final Chunk[] result = new Chunk[nofBefore + parts + nofAfter];
+		System.arraycopy(before, beforeFrom, result, 0, nofBefore);
+		int index = from;
+		for (int i = 0; i < parts; i++) {
+			final int next = from + (int) ((long) count * (i + 1) / parts);
+			final long[] chunkTimes = new long[next - index];
+			final double[] chunkValues = new double[next - index];
+			System.arraycopy(times, index, chunkTimes, 0, next - index);
+			System.arraycopy(values, index, chunkValues, 0, next - index);
+			result[nofBefore + i] = new Chunk(chunkTimes, chunkValues);
+			index = next;
+		}
+		System.arraycopy(after, afterFrom, result, nofBefore + parts, nofAfter);
+		return result;
+	}
+
+	/**
+	 * The chunk holding the point with the given index.
+	 */
+	private int chunkOf(final int index) {
+		int low = 0;
+		int high = chunks.length - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= index) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private long timeAt(final int index) {
+		final int chunk = chunkOf(index);
+		return chunks[chunk].times[index - starts[chunk]];
+	}
+
+	private double valueAt(final int index) {
+		final int chunk = chunkOf(index);
+		return chunks[chunk].values[index - starts[chunk]];
+	}
+
+	/**
+	 * The value of the point before the given index, 0 if there is none.
+	 */
+	private double valueBefore(final int index) {
+		return (index == 0) ? 0 : valueAt(index - 1);
+	}
+
+	/**
+	 * Index of the first point at or after time, or size if there is none.
+	 */
+	private int lowerBound(final long time) {
+		return bound(time, false);
+	}
+
+	/**
+	 * Index of the first point after time, or size if there is none.
+	 */
+	private int upperBound(final long time) {
+		return bound(time, true);
+	}
+
+	private int bound(final long time, final boolean after) {
+		// First find the first chunk that ends at or after the time
+		int low = 0;
+		int high = chunks.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final long[] times = chunks[mid].times;
+			final long end = times[times.length - 1];
+			if (end < time || (after && end == time)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (low == chunks.length) {
+			return size;
+		}
+		final int chunk = low;
+		final long[] times = chunks[chunk].times;
+		low = 0;
+		high = times.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] < time || (after && times[mid] == time)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return starts[chunk] + low;
+	}
+
+	/**
+	 * A run of points; never changed after construction, so it can be shared
+	 * between timelines.
+	 */
+	private static final class Chunk {
+		private final long[]	times;
+		private final double[]	values;
+
+		private Chunk(final long[] times, final double[] values) {
+			this.times = times;
+			this.values = values;
+		}
+	}
+}
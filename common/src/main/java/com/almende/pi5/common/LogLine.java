@@ -5,6 +5,7 @@
 package com.almende.pi5.common;
 
 import org.joda.time.DateTime;
+import org.joda.time.Duration;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
@@ -299,30 +300,62 @@ public class LogLine {
 			final CategoryProfile current, final CategoryProfile expected,
 			final DateTime now, final DateTime currentTimeslot,
 			final boolean contractMode) {
+		return fromProfiles(id, current, expected, now.getMillis(),
+				currentTimeslot.getMillis(), Duration.standardMinutes(15)
+						.getMillis(), contractMode);
+	}
+
+	/**
+	 * From profiles.
+	 *
+	 * @param id
+	 *            the id
+	 * @param current
+	 *            the current
+	 * @param expected
+	 *            the expected
+	 * @param now
+	 *            the now, in milliseconds since the epoch
+	 * @param currentTimeslot
+	 *            the current timeslot, in milliseconds since the epoch
+	 * @param timeslotLength
+	 *            the timeslot length, in milliseconds
+	 * @param contractMode
+	 *            the contract mode
+	 * @return the log line
+	 */
+	public static LogLine fromProfiles(final String id,
+			final CategoryProfile current, final CategoryProfile expected,
+			final long now, final long currentTimeslot,
+			final long timeslotLength, final boolean contractMode) {
 		final LogLine result = new LogLine();
 		result.setId(id);
-		result.setNow(now.getMillis());
-		result.setTimeslot(currentTimeslot.getMillis());
+		result.setNow(now);
+		result.setTimeslot(currentTimeslot);
 		result.setCurrent(current.getDemand().getValueAt(now));
-		result.setDemand(current.getDemand().getIntegral(
-				currentTimeslot.minusMinutes(15), currentTimeslot));
-		result.setExpected(expected.getDemand().getIntegral(
-				currentTimeslot.minusMinutes(15), currentTimeslot));
-		result.setMax(expected.getExpectedFlexibilityMaxInWatts().getIntegral(
-				currentTimeslot.minusMinutes(15), currentTimeslot));
-		result.setMin(expected.getExpectedFlexibilityMinInWatts().getIntegral(
-				currentTimeslot.minusMinutes(15), currentTimeslot));
-		result.setNextDemand(current.getDemand().getIntegral(currentTimeslot,
-				currentTimeslot.plusMinutes(15)));
-		result.setNextMax(expected.getExpectedFlexibilityMaxInWatts()
-				.getIntegral(currentTimeslot, currentTimeslot.plusMinutes(15)));
-		result.setNextMin(expected.getExpectedFlexibilityMinInWatts()
-				.getIntegral(currentTimeslot, currentTimeslot.plusMinutes(15)));
+
+		// demand, expected, max and min, integrated over the current and the
+		// next timeslot in one sweep
+		final PowerTimeLine.Sweep sweep = new PowerTimeLine.Sweep(
+				current.getDemand(), expected.getDemand(),
+				expected.getExpectedFlexibilityMaxInWatts(),
+				expected.getExpectedFlexibilityMinInWatts());
+		final double[] start = sweep.moveTo(currentTimeslot - timeslotLength)
+				.integrals(new double[4]);
+		final double[] middle = sweep.moveTo(currentTimeslot).integrals(
+				new double[4]);
+		final double[] end = sweep.moveTo(currentTimeslot + timeslotLength)
+				.integrals(new double[4]);
+		result.setDemand(middle[0] - start[0]);
+		result.setExpected(middle[1] - start[1]);
+		result.setMax(middle[2] - start[2]);
+		result.setMin(middle[3] - start[3]);
+		result.setNextDemand(end[0] - middle[0]);
+		result.setNextMax(end[2] - middle[2]);
+		result.setNextMin(end[3] - middle[3]);
 		if (contractMode) {
-			result.setRequest(expected.getDemand().getIntegral(
-					currentTimeslot.minusMinutes(15), currentTimeslot));
-			result.setNextRequest(expected.getDemand().getIntegral(
-					currentTimeslot, currentTimeslot.plusMinutes(15)));
+			result.setRequest(middle[1] - start[1]);
+			result.setNextRequest(end[1] - middle[1]);
 		}
 		return result;
 	}
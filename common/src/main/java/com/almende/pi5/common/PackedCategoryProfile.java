@@ -0,0 +1,454 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import org.joda.time.DateTime;
+
+import com.almende.util.jackson.JOM;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * The Class PackedCategoryProfile.
+ * The three lines of a {@link CategoryProfile} (demand, maximum and minimum
+ * flexibility) packed on one shared axis of breakpoints: one array of
+ * absolute times (milliseconds since the epoch) and one column of values per
+ * line. The lines mostly share their breakpoints, so operations walk the
+ * axis once and update all three columns, instead of walking three lines.
+ * Each line is the same step function as in the {@link CategoryProfile}, and
+ * the lines converted back are compacted, as the results of the line
+ * operations are. The JSON representation is that of a
+ * {@link CategoryProfile}.
+ */
+public final class PackedCategoryProfile {
+	private static final int		LINES		= CategoryProfile.MIN + 1;
+	private static final long[]		NO_TIMES	= new long[0];
+	private static final double[]	NO_VALUES	= new double[0];
+
+	private DateTime				timestamp	= new DateTime();
+	private long[]					times		= NO_TIMES;
+	private final double[][]		columns		= new double[LINES][];
+	/* Per line, the index of its first point on the axis; size if empty */
+	private final int[]				starts		= new int[LINES];
+	private int						size		= 0;
+
+	/**
+	 * Instantiates a new, empty, packed category profile.
+	 */
+	public PackedCategoryProfile() {
+		for (int kind = 0; kind < LINES; kind++) {
+			columns[kind] = NO_VALUES;
+		}
+	}
+
+	private PackedCategoryProfile(final DateTime timestamp, final int capacity) {
+		this.timestamp = timestamp;
+		this.times = new long[capacity];
+		for (int kind = 0; kind < LINES; kind++) {
+			columns[kind] = new double[capacity];
+			starts[kind] = -1;
+		}
+	}
+
+	/**
+	 * Pack the lines of the given profile, with the timestamp of its demand.
+	 *
+	 * @param profile
+	 *            the profile
+	 * @return the packed category profile
+	 */
+	public static PackedCategoryProfile of(final CategoryProfile profile) {
+		final PowerTimeLine[] lines = new PowerTimeLine[LINES];
+		for (int kind = 0; kind < LINES; kind++) {
+			lines[kind] = profile.getLine(kind);
+		}
+		return pack(lines[CategoryProfile.DEMAND].getTimestamp(), lines);
+	}
+
+	/**
+	 * Convert to a new category profile, with the timestamp of this profile.
+	 *
+	 * @return the category profile
+	 */
+	public CategoryProfile toCategoryProfile() {
+		final CategoryProfile result = new CategoryProfile();
+		for (int kind = 0; kind < LINES; kind++) {
+			result.setLine(kind, line(kind));
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the timestamp of the lines.
+	 *
+	 * @return the timestamp
+	 */
+	@JsonIgnore
+	public DateTime getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * The number of breakpoints on the shared axis.
+	 *
+	 * @return the number of breakpoints
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the value of one line at the given time.
+	 *
+	 * @param kind
+	 *            the line: 0 for the demand, 1 for the maximum and 2 for the
+	 *            minimum
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the value
+	 */
+	@JsonIgnore
+	public double getValueAt(final int kind, final long time) {
+		final int index = upperBound(time);
+		return (index == 0) ? 0 : columns[kind][index - 1];
+	}
+
+	/**
+	 * Gets the demand.
+	 *
+	 * @return the demand
+	 */
+	public PowerTimeLine getDemand() {
+		return line(CategoryProfile.DEMAND);
+	}
+
+	/**
+	 * Sets the demand.
+	 *
+	 * @param demand
+	 *            the new demand
+	 */
+	public void setDemand(final PowerTimeLine demand) {
+		replaceLine(CategoryProfile.DEMAND, demand);
+	}
+
+	/**
+	 * Gets the expected flexibility max in watts.
+	 *
+	 * @return the expected flexibility max in watts
+	 */
+	public PowerTimeLine getExpectedFlexibilityMaxInWatts() {
+		return line(CategoryProfile.MAX);
+	}
+
+	/**
+	 * Sets the expected flexibility max in watts.
+	 *
+	 * @param max
+	 *            the new expected flexibility max in watts
+	 */
+	public void setExpectedFlexibilityMaxInWatts(final PowerTimeLine max) {
+		replaceLine(CategoryProfile.MAX, max);
+	}
+
+	/**
+	 * Gets the expected flexibility min in watts.
+	 *
+	 * @return the expected flexibility min in watts
+	 */
+	public PowerTimeLine getExpectedFlexibilityMinInWatts() {
+		return line(CategoryProfile.MIN);
+	}
+
+	/**
+	 * Sets the expected flexibility min in watts.
+	 *
+	 * @param min
+	 *            the new expected flexibility min in watts
+	 */
+	public void setExpectedFlexibilityMinInWatts(final PowerTimeLine min) {
+		replaceLine(CategoryProfile.MIN, min);
+	}
+
+	/**
+	 * Add the lines of other to the lines of this profile, in one walk over
+	 * both axes, returning this one. Each line is the same as
+	 * {@link PowerTimeLine#addCompact(PowerTimeLine)} of the lines.
+	 *
+	 * @param other
+	 *            the other
+	 * @return this for chaining
+	 */
+	public PackedCategoryProfile add(final PackedCategoryProfile other) {
+		final PackedCategoryProfile result = new PackedCategoryProfile(
+				timestamp, size + other.size);
+		int mine = 0;
+		int theirs = 0;
+		final double[] valueMine = new double[LINES];
+		final double[] valueOther = new double[LINES];
+		while (mine < size || theirs < other.size) {
+			final boolean hasMine = mine < size;
+			final boolean hasOther = theirs < other.size;
+			final long time;
+			if (!hasOther || (hasMine && other.times[theirs] > times[mine])) {
+				time = times[mine];
+				read(mine++, valueMine);
+			} else if (hasMine && other.times[theirs] == times[mine]) {
+				time = times[mine];
+				read(mine++, valueMine);
+				other.read(theirs++, valueOther);
+			} else {
+				time = other.times[theirs];
+				other.read(theirs++, valueOther);
+			}
+			final int index = result.size++;
+			result.times[index] = time;
+			for (int kind = 0; kind < LINES; kind++) {
+				result.columns[kind][index] = valueMine[kind]
+						+ valueOther[kind];
+				if (result.starts[kind] < 0
+						&& (starts[kind] < mine || other.starts[kind] < theirs)) {
+					result.starts[kind] = index;
+				}
+			}
+		}
+		for (int kind = 0; kind < LINES; kind++) {
+			if (result.starts[kind] < 0) {
+				result.starts[kind] = result.size;
+			}
+		}
+		return take(result);
+	}
+
+	/**
+	 * Merge other into this profile between start (inclusive) and end
+	 * (exclusive), returning this one. Each line is the same as
+	 * {@link PowerTimeLine#merge(PowerTimeLine, long, long)} of the lines,
+	 * compacted.
+	 *
+	 * @param other
+	 *            the other
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @return this for chaining
+	 */
+	public PackedCategoryProfile merge(final PackedCategoryProfile other,
+			final long start, final long end) {
+		if (end <= start) {
+			throw new IllegalArgumentException("End " + end
+					+ " is not after start " + start);
+		}
+		final int before = lowerBound(start);
+		final int after = upperBound(end);
+		final int otherFrom = other.upperBound(start);
+		final int otherTo = other.lowerBound(end);
+		final PackedCategoryProfile result = new PackedCategoryProfile(
+				timestamp, before + otherTo - otherFrom + 2 + size - after);
+
+		System.arraycopy(times, 0, result.times, 0, before);
+		result.times[before] = start;
+		System.arraycopy(other.times, otherFrom, result.times, before + 1,
+				otherTo - otherFrom);
+		final int atEnd = before + 1 + otherTo - otherFrom;
+		result.times[atEnd] = end;
+		System.arraycopy(times, after, result.times, atEnd + 1, size - after);
+		result.size = atEnd + 1 + size - after;
+
+		for (int kind = 0; kind < LINES; kind++) {
+			final double[] column = result.columns[kind];
+			System.arraycopy(columns[kind], 0, column, 0, before);
+			column[before] = (otherFrom == 0) ? 0
+					: other.columns[kind][otherFrom - 1];
+			System.arraycopy(other.columns[kind], otherFrom, column,
+					before + 1, otherTo - otherFrom);
+			column[atEnd] = (after == 0) ? 0 : columns[kind][after - 1];
+			System.arraycopy(columns[kind], after, column, atEnd + 1, size
+					- after);
+			if (starts[kind] == size && other.starts[kind] == other.size) {
+				result.starts[kind] = result.size;
+			} else {
+				result.starts[kind] = Math.min(starts[kind], before);
+			}
+		}
+		return take(result);
+	}
+
+	@Override
+	public String toString() {
+		return JOM.getInstance().valueToTree(this).toString();
+	}
+
+	/**
+	 * Pack the given lines on their shared axis. Lines with the same
+	 * breakpoints are copied as they are, otherwise the axis is the union of
+	 * their breakpoints.
+	 */
+	private static PackedCategoryProfile pack(final DateTime timestamp,
+			final PowerTimeLine[] lines) {
+		if (sameAxis(lines)) {
+			final int size = lines[0].size();
+			final PackedCategoryProfile result = new PackedCategoryProfile(
+					timestamp, size);
+			for (int i = 0; i < size; i++) {
+				result.times[i] = lines[0].timeAt(i);
+				for (int kind = 0; kind < LINES; kind++) {
+					result.columns[kind][i] = lines[kind].valueAt(i);
+				}
+			}
+			result.size = size;
+			for (int kind = 0; kind < LINES; kind++) {
+				result.starts[kind] = 0;
+			}
+			return result;
+		}
+		int capacity = 0;
+		for (int kind = 0; kind < LINES; kind++) {
+			capacity += lines[kind].size();
+		}
+		final PackedCategoryProfile result = new PackedCategoryProfile(
+				timestamp, capacity);
+		final int[] positions = new int[LINES];
+		final double[] values = new double[LINES];
+		while (true) {
+			long time = Long.MAX_VALUE;
+			boolean found = false;
+			for (int kind = 0; kind < LINES; kind++) {
+				if (positions[kind] < lines[kind].size()) {
+					time = Math.min(time, lines[kind].timeAt(positions[kind]));
+					found = true;
+				}
+			}
+			if (!found) {
+				break;
+			}
+			final int index = result.size++;
+			result.times[index] = time;
+			for (int kind = 0; kind < LINES; kind++) {
+				final PowerTimeLine line = lines[kind];
+				if (positions[kind] < line.size()
+						&& line.timeAt(positions[kind]) == time) {
+					values[kind] = line.valueAt(positions[kind]++);
+					if (result.starts[kind] < 0) {
+						result.starts[kind] = index;
+					}
+				}
+				result.columns[kind][index] = values[kind];
+			}
+		}
+		for (int kind = 0; kind < LINES; kind++) {
+			if (result.starts[kind] < 0) {
+				result.starts[kind] = result.size;
+			}
+		}
+		return result;
+	}
+
+	private static boolean sameAxis(final PowerTimeLine[] lines) {
+		final int size = lines[0].size();
+		for (int kind = 1; kind < LINES; kind++) {
+			if (lines[kind].size() != size) {
+				return false;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			final long time = lines[0].timeAt(i);
+			for (int kind = 1; kind < LINES; kind++) {
+				if (lines[kind].timeAt(i) != time) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Unpack one line, compacted, with the timestamp of this profile.
+	 */
+	PowerTimeLine line(final int kind) {
+		final PowerTimeLine result = new PowerTimeLine(timestamp);
+		unpack(kind, result);
+		return result;
+	}
+
+	/**
+	 * Replace the points of the target by one line, compacted, keeping the
+	 * timestamp of the target.
+	 */
+	void unpack(final int kind, final PowerTimeLine target) {
+		final long base = target.getTimestamp().getMillis();
+		final double[] column = columns[kind];
+		final long[] offsets = new long[size - starts[kind]];
+		final double[] values = new double[offsets.length];
+		int count = 0;
+		for (int i = starts[kind]; i < size; i++) {
+			if (count == 0 || values[count - 1] != column[i]) {
+				offsets[count] = times[i] - base;
+				values[count++] = column[i];
+			}
+		}
+		target.setPoints(offsets, values, count);
+	}
+
+	private void replaceLine(final int kind, final PowerTimeLine line) {
+		final PowerTimeLine[] lines = new PowerTimeLine[LINES];
+		for (int i = 0; i < LINES; i++) {
+			lines[i] = (i == kind) ? line : line(i);
+		}
+		take(pack(kind == CategoryProfile.DEMAND ? line.getTimestamp()
+				: timestamp, lines));
+	}
+
+	private void read(final int index, final double[] target) {
+		for (int kind = 0; kind < LINES; kind++) {
+			target[kind] = (index < starts[kind]) ? 0 : columns[kind][index];
+		}
+	}
+
+	private PackedCategoryProfile take(final PackedCategoryProfile other) {
+		timestamp = other.timestamp;
+		times = other.times;
+		size = other.size;
+		for (int kind = 0; kind < LINES; kind++) {
+			columns[kind] = other.columns[kind];
+			starts[kind] = other.starts[kind];
+		}
+		return this;
+	}
+
+	/**
+	 * Index of the first breakpoint at or after time (size if there is none).
+	 */
+	private int lowerBound(final long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the first breakpoint after time (size if there is none).
+	 */
+	private int upperBound(final long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (times[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
@@ -4,8 +4,14 @@
  */
 package com.almende.pi5.common;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
 
@@ -15,13 +21,27 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
  * The Class EnergyProfile.
  */
 public class PowerProfile {
+	private static final Logger				LOG			= Logger.getLogger(PowerProfile.class
+																.getName());
+	private static final Categories[]		CATEGORIES	= Categories.values();
+	/* Most children of a category summed in one task of sumAll */
+	private static final int				SUM_THRESHOLD	= 8;
 
 	private DateTime						timestamp	= new DateTime();
 	/* Outside temperature */
 	private double							temperature;
 	private PowerTimeLine					controlMode	= new PowerTimeLine(
 																timestamp);
-	private Map<String, CategoryProfile>	reports		= new HashMap<String, CategoryProfile>();
+	/* Indexed by Categories.ordinal(), null for empty categories */
+	private CategoryProfile[]				categories	= new CategoryProfile[CATEGORIES.length];
+	/*
+	 * Per kind of line (demand, max, min) and category: the line the ALL
+	 * category was last calculated from and its version, to recalculate only
+	 * the kinds that changed. The ALL entry holds the calculated line itself.
+	 */
+	private PowerTimeLine[][]				sources		= null;
+	private long[][]						versions	= null;
+	private DateTime						calculated	= null;
 
 	/**
 	 * Instantiates a new energy profile.
@@ -39,61 +59,112 @@ public class PowerProfile {
 	}
 
 	/**
-	 * Gets the category report.
+	 * Gets the category report, creating an empty one if this profile has
+	 * none for the category yet.
 	 *
 	 * @param category
 	 *            the category
 	 * @return the category report
 	 */
 	@JsonIgnore
-	public CategoryProfile getCategoryProfile(final String category) {
-		if (!reports.containsKey(category)) {
-			final CategoryProfile report = new CategoryProfile();
-			report.setDemand(new PowerTimeLine(timestamp));
-			report.setExpectedFlexibilityMaxInWatts(new PowerTimeLine(timestamp));
-			report.setExpectedFlexibilityMinInWatts(new PowerTimeLine(timestamp));
-			reports.put(category, report);
+	public CategoryProfile getCategoryProfile(final Categories category) {
+		CategoryProfile report = categories[category.ordinal()];
+		if (report == null) {
+			report = emptyReport();
+			categories[category.ordinal()] = report;
 		}
-		return reports.get(category);
+		return report;
+	}
+
+	/**
+	 * Gets the category report. An unknown category gets an empty report,
+	 * which is not kept in this profile.
+	 *
+	 * @param category
+	 *            the category name
+	 * @return the category report
+	 */
+	@JsonIgnore
+	public CategoryProfile getCategoryProfile(final String category) {
+		final Categories cat = category(category);
+		return cat == null ? emptyReport() : getCategoryProfile(cat);
 	}
 
 	/**
-	 * Calc all.
+	 * Gets the category report without creating it: an empty category has no
+	 * report. The result is null in that case, which reads as all lines zero.
+	 *
+	 * @param category
+	 *            the category
+	 * @return the category report, or null
+	 */
+	@JsonIgnore
+	public CategoryProfile peekCategoryProfile(final Categories category) {
+		return categories[category.ordinal()];
+	}
+
+	/**
+	 * Calc all: set the ALL category to the sum of the other categories.
+	 * Only the kinds of line (demand, max or min) of which a category line
+	 * was changed or replaced since the last calculation are summed again,
+	 * so without changes this is O(1).
 	 *
 	 * @return this profile for chaining
 	 */
 	public PowerProfile calcAll() {
-		// TODO: for loop over categories?
-		CategoryProfile all = getCategoryProfile(Categories.ALL.name());
-		CategoryProfile hvac = getCategoryProfile(Categories.HVAC.name());
-		CategoryProfile lighting = getCategoryProfile(Categories.LIGHTING
-				.name());
-		CategoryProfile other = getCategoryProfile(Categories.OTHER.name());
-		CategoryProfile production = getCategoryProfile(Categories.PRODUCTION
-				.name());
-		CategoryProfile simulated = getCategoryProfile(Categories.SIMULATED
-				.name());
-
-		all.setDemand(new PowerTimeLine(timestamp).add(hvac.getDemand())
-				.add(lighting.getDemand()).add(other.getDemand())
-				.add(production.getDemand()).add(simulated.getDemand())
-				.compact());
-		all.setExpectedFlexibilityMaxInWatts(new PowerTimeLine(timestamp)
-				.add(hvac.getExpectedFlexibilityMaxInWatts())
-				.add(lighting.getExpectedFlexibilityMaxInWatts())
-				.add(other.getExpectedFlexibilityMaxInWatts())
-				.add(production.getExpectedFlexibilityMaxInWatts())
-				.add(simulated.getExpectedFlexibilityMaxInWatts()).compact());
-		all.setExpectedFlexibilityMinInWatts(new PowerTimeLine(timestamp)
-				.add(hvac.getExpectedFlexibilityMinInWatts())
-				.add(lighting.getExpectedFlexibilityMinInWatts())
-				.add(other.getExpectedFlexibilityMinInWatts())
-				.add(production.getExpectedFlexibilityMinInWatts())
-				.add(simulated.getExpectedFlexibilityMinInWatts()).compact());
-		setCategoryReport(Categories.ALL.name(), all);
+		final boolean moved = !timestamp.equals(calculated);
+		final CategoryProfile all = getCategoryProfile(Categories.ALL);
+		final List<PowerTimeLine> lines = new ArrayList<PowerTimeLine>(
+				CATEGORIES.length);
+		for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+				kind++) {
+			boolean dirty = moved;
+			for (final Categories cat : CATEGORIES) {
+				final CategoryProfile myCat = categories[cat.ordinal()];
+				final PowerTimeLine line = myCat == null ? null : myCat
+						.getLine(kind);
+				if (sources == null || sources[kind][cat.ordinal()] != line
+						|| (line != null && versions[kind][cat.ordinal()] != line
+								.version())) {
+					dirty = true;
+					break;
+				}
+			}
+			if (!dirty) {
+				continue;
+			}
+			lines.clear();
+			for (final Categories cat : CATEGORIES) {
+				final CategoryProfile myCat = categories[cat.ordinal()];
+				if (cat != Categories.ALL && myCat != null) {
+					lines.add(myCat.getLine(kind));
+				}
+			}
+			all.setLine(kind, PowerTimeLine.sum(timestamp, lines));
+			calculated(kind);
+		}
+		calculated = timestamp;
 		return this;
 	}
 
+	/**
+	 * Record the current lines of the given kind as the lines the ALL
+	 * category was calculated from.
+	 */
+	private void calculated(final int kind) {
+		if (sources == null) {
+			sources = new PowerTimeLine[CategoryProfile.MIN + 1][CATEGORIES.length];
+			versions = new long[CategoryProfile.MIN + 1][CATEGORIES.length];
+		}
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile myCat = categories[cat.ordinal()];
+			final PowerTimeLine line = myCat == null ? null : myCat
+					.getLine(kind);
+			sources[kind][cat.ordinal()] = line;
+			versions[kind][cat.ordinal()] = line == null ? 0 : line.version();
+		}
+	}
+
 	/**
 	 * Merge other PowerProfile into this one for the given time period.
 	 *
@@ -107,14 +178,51 @@ public class PowerProfile {
 	 */
 	public PowerProfile merge(final PowerProfile other, final DateTime start,
 			final DateTime end) {
-		for (Categories cat : Categories.values()) {
-			final String category = cat.name();
-			if (category.equals(Categories.ALL.name())) {
+		return merge(other, start.getMillis(), end.getMillis());
+	}
+
+	/**
+	 * Merge other PowerProfile into this one for the given time period.
+	 *
+	 * @param other
+	 *            the other
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @return this profile for chaining
+	 */
+	public PowerProfile merge(final PowerProfile other, final long start,
+			final long end) {
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile otherCat = other.peekCategoryProfile(cat);
+			if (cat == Categories.ALL) {
 				continue;
 			}
-			final CategoryProfile myCat = getCategoryProfile(category);
-			final CategoryProfile otherCat = other.getCategoryProfile(category);
+			if (otherCat == null) {
+				final CategoryProfile myCat = categories[cat.ordinal()];
+				if (myCat != null) {
+					myCat.getDemand().zeroBetween(start, end).compact();
+					myCat.getExpectedFlexibilityMaxInWatts()
+							.zeroBetween(start, end).compact();
+					myCat.getExpectedFlexibilityMinInWatts()
+							.zeroBetween(start, end).compact();
+				}
+				continue;
+			}
+			final CategoryProfile myCat = getCategoryProfile(cat);
 
+			if (start < end) {
+				// One walk for the three lines
+				final PackedCategoryProfile packed = PackedCategoryProfile.of(
+						myCat).merge(PackedCategoryProfile.of(otherCat), start,
+						end);
+				for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+						kind++) {
+					packed.unpack(kind, myCat.getLine(kind));
+				}
+				continue;
+			}
 			myCat.getDemand().merge(otherCat.getDemand(), start, end).compact();
 			myCat.getExpectedFlexibilityMaxInWatts()
 					.merge(otherCat.getExpectedFlexibilityMaxInWatts(), start,
@@ -135,19 +243,20 @@ public class PowerProfile {
 	 * @return this profile for chaining
 	 */
 	public PowerProfile add(final PowerProfile other) {
-		for (Categories cat : Categories.values()) {
-			final String category = cat.name();
-			if (category.equals(Categories.ALL.name())) {
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile otherCat = other.peekCategoryProfile(cat);
+			if (cat == Categories.ALL || otherCat == null) {
 				continue;
 			}
-			final CategoryProfile myCat = getCategoryProfile(category);
-			final CategoryProfile otherCat = other.getCategoryProfile(category);
+			final CategoryProfile myCat = getCategoryProfile(cat);
 
-			myCat.getDemand().add(otherCat.getDemand()).compact();
-			myCat.getExpectedFlexibilityMaxInWatts()
-					.add(otherCat.getExpectedFlexibilityMaxInWatts()).compact();
-			myCat.getExpectedFlexibilityMinInWatts()
-					.add(otherCat.getExpectedFlexibilityMinInWatts()).compact();
+			// One walk for the three lines
+			final PackedCategoryProfile packed = PackedCategoryProfile.of(
+					myCat).add(PackedCategoryProfile.of(otherCat));
+			for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+					kind++) {
+				packed.unpack(kind, myCat.getLine(kind));
+			}
 		}
 		calcAll();
 		return this;
@@ -161,12 +270,22 @@ public class PowerProfile {
 	 * @return this profile for chaining
 	 */
 	public PowerProfile dropHistory(final DateTime start) {
-		for (Categories cat : Categories.values()) {
-			final String category = cat.name();
-			if (category.equals(Categories.ALL.name())) {
+		return dropHistory(start.getMillis());
+	}
+
+	/**
+	 * Drop history.
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @return this profile for chaining
+	 */
+	public PowerProfile dropHistory(final long start) {
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile myCat = categories[cat.ordinal()];
+			if (cat == Categories.ALL || myCat == null) {
 				continue;
 			}
-			final CategoryProfile myCat = getCategoryProfile(category);
 			myCat.getDemand().zeroBefore(start);
 			myCat.getExpectedFlexibilityMaxInWatts().zeroBefore(start);
 			myCat.getExpectedFlexibilityMinInWatts().zeroBefore(start);
@@ -175,6 +294,391 @@ public class PowerProfile {
 		return this;
 	}
 
+	/**
+	 * Create a compacted copy of this profile in timeslots of the default
+	 * length, see {@link #compacted(double, double, long)}.
+	 *
+	 * @param absTolerance
+	 *            the maximum error in value (Watt)
+	 * @param energyTolerance
+	 *            the maximum energy error in each timeslot (Joule)
+	 * @return the compacted copy
+	 */
+	public PowerProfile compacted(final double absTolerance,
+			final double energyTolerance) {
+		return compacted(absTolerance, energyTolerance,
+				PowerTimeLine.DEFAULT_SLOT_LENGTH);
+	}
+
+	/**
+	 * Create a copy of this profile with the category timelines compacted
+	 * within the given tolerances, see
+	 * {@link PowerTimeLine#compact(double, double, long)}. The ALL category of
+	 * the copy is recalculated from the compacted categories. This profile is
+	 * not changed.
+	 *
+	 * @param absTolerance
+	 *            the maximum error in value (Watt)
+	 * @param energyTolerance
+	 *            the maximum energy error in each timeslot (Joule)
+	 * @param slotLength
+	 *            the timeslot length (ms)
+	 * @return the compacted copy
+	 */
+	public PowerProfile compacted(final double absTolerance,
+			final double energyTolerance, final long slotLength) {
+		final PowerProfile result = new PowerProfile(timestamp);
+		result.setTemperature(temperature);
+		result.setControlMode(controlMode);
+		for (final Categories category : CATEGORIES) {
+			final CategoryProfile cat = categories[category.ordinal()];
+			if (cat == null || category == Categories.ALL) {
+				continue;
+			}
+			final CategoryProfile copy = new CategoryProfile();
+			copy.setDemand(cat.getDemand().clone()
+					.compact(absTolerance, energyTolerance, slotLength));
+			copy.setExpectedFlexibilityMaxInWatts(cat
+					.getExpectedFlexibilityMaxInWatts().clone()
+					.compact(absTolerance, energyTolerance, slotLength));
+			copy.setExpectedFlexibilityMinInWatts(cat
+					.getExpectedFlexibilityMinInWatts().clone()
+					.compact(absTolerance, energyTolerance, slotLength));
+			result.setCategoryReport(category, copy);
+		}
+		return result.calcAll();
+	}
+
+	/**
+	 * Create the delta from the previous version of this profile to this
+	 * one, see {@link ProfileDelta}. Neither profile is changed. The sequence
+	 * numbers of the delta are left to the caller.
+	 *
+	 * @param previous
+	 *            the previous version
+	 * @return the delta
+	 */
+	public ProfileDelta diff(final PowerProfile previous) {
+		final ProfileDelta delta = new ProfileDelta(timestamp);
+		delta.setTemperature(temperature);
+		delta.setControlMode(controlMode);
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile myCat = categories[cat.ordinal()];
+			final CategoryProfile prevCat = previous.peekCategoryProfile(cat);
+			if (cat == Categories.ALL || (myCat == null && prevCat == null)) {
+				continue;
+			}
+			if (myCat == null) {
+				delta.getRemoved().add(cat.name());
+				continue;
+			}
+			for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+					kind++) {
+				final PowerTimeLine prevLine = prevCat == null ? new PowerTimeLine(
+						timestamp) : prevCat.getLine(kind);
+				final ProfileDelta.Window window = ProfileDelta.Window.of(cat,
+						kind, prevLine, myCat.getLine(kind), timestamp);
+				if (window != null) {
+					delta.getWindows().add(window);
+				}
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Apply a delta to the version of a profile it was created from, see
+	 * {@link #diff(PowerProfile)}. The base is not changed: the result
+	 * shares the lines that didn't change, and has new copies of those that
+	 * did.
+	 *
+	 * @param base
+	 *            the base version
+	 * @param delta
+	 *            the delta
+	 * @return the new version
+	 */
+	public static PowerProfile applyDiff(final PowerProfile base,
+			final ProfileDelta delta) {
+		final PowerProfile result = new PowerProfile(delta.getTimestamp());
+		result.setTemperature(delta.getTemperature());
+		if (delta.getControlMode() != null) {
+			result.setControlMode(delta.getControlMode());
+		}
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile baseCat = base.peekCategoryProfile(cat);
+			if (cat == Categories.ALL || baseCat == null
+					|| delta.getRemoved().contains(cat.name())) {
+				continue;
+			}
+			final CategoryProfile copy = new CategoryProfile();
+			for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+					kind++) {
+				copy.setLine(kind, baseCat.getLine(kind));
+			}
+			result.setCategoryReport(cat, copy);
+		}
+		final boolean[][] copied = new boolean[CATEGORIES.length][CategoryProfile.MIN + 1];
+		for (final ProfileDelta.Window window : delta.getWindows()) {
+			final Categories cat = category(window.getCategory());
+			if (cat == null || cat == Categories.ALL) {
+				continue;
+			}
+			final CategoryProfile myCat = result.getCategoryProfile(cat);
+			final int kind = window.getLine();
+			if (!copied[cat.ordinal()][kind]) {
+				myCat.setLine(kind, myCat.getLine(kind).clone());
+				copied[cat.ordinal()][kind] = true;
+			}
+			window.applyTo(myCat.getLine(kind));
+		}
+		return result.calcAll();
+	}
+
+	/**
+	 * Sum the given profiles into a new profile, in the given pool, see
+	 * {@link #sumAll(DateTime, Collection, long, ForkJoinPool)}. The result
+	 * has the latest timestamp of the profiles and only sums grids that the
+	 * profiles already carry as dense grids.
+	 *
+	 * @param profiles
+	 *            the profiles
+	 * @param pool
+	 *            the pool to sum in
+	 * @return the sum
+	 */
+	public static PowerProfile sumAll(final Collection<PowerProfile> profiles,
+			final ForkJoinPool pool) {
+		DateTime timestamp = null;
+		for (final PowerProfile profile : profiles) {
+			if (timestamp == null || profile.timestamp.isAfter(timestamp)) {
+				timestamp = profile.timestamp;
+			}
+		}
+		return sumAll(timestamp == null ? new DateTime() : timestamp,
+				profiles, 0, pool);
+	}
+
+	/**
+	 * Sum the given profiles into a new profile, in the given pool. The work
+	 * is split per kind of line, per category and, recursively, in halves of
+	 * the children of a category, down to a few children per task. Partial
+	 * sums are added with the rules of {@link CategoryProfile#sumLine}: as
+	 * dense grids if they lie on the same grid of the given step, otherwise as
+	 * power time lines. The ALL category of the profiles is ignored; the ALL category of
+	 * the result is summed from the category sums in the same tasks, and is
+	 * up to date for {@link #calcAll()}.
+	 * The profiles are only read, but each of them must not be changed while
+	 * summing. Children may be added in a different order than a serial sum
+	 * would, so results can differ in the last bits.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the result
+	 * @param profiles
+	 *            the profiles
+	 * @param step
+	 *            the step size in milliseconds of the timeslot grid
+	 * @param pool
+	 *            the pool to sum in
+	 * @return the sum
+	 */
+	public static PowerProfile sumAll(final DateTime timestamp,
+			final Collection<PowerProfile> profiles, final long step,
+			final ForkJoinPool pool) {
+		final List<List<CategoryProfile>> children = new ArrayList<List<CategoryProfile>>(
+				CATEGORIES.length);
+		for (final Categories cat : CATEGORIES) {
+			final List<CategoryProfile> catChildren = new ArrayList<CategoryProfile>(
+					cat == Categories.ALL ? 0 : profiles.size());
+			children.add(catChildren);
+			if (cat == Categories.ALL) {
+				continue;
+			}
+			for (final PowerProfile profile : profiles) {
+				final CategoryProfile child = profile.peekCategoryProfile(cat);
+				if (child != null) {
+					catChildren.add(child);
+				}
+			}
+		}
+		final PowerProfile result = new PowerProfile(timestamp);
+		result.categories = pool.invoke(new ProfileSum(timestamp, children,
+				step));
+		for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+				kind++) {
+			result.calculated(kind);
+		}
+		result.calculated = timestamp;
+		return result;
+	}
+
+	/**
+	 * Sums all categories of the children, one subtask per kind of line.
+	 */
+	private static final class ProfileSum extends
+			RecursiveTask<CategoryProfile[]> {
+		private static final long					serialVersionUID	= 1L;
+		private final DateTime						timestamp;
+		private final List<List<CategoryProfile>>	children;
+		private final long							step;
+
+		private ProfileSum(final DateTime timestamp,
+				final List<List<CategoryProfile>> children, final long step) {
+			this.timestamp = timestamp;
+			this.children = children;
+			this.step = step;
+		}
+
+		@Override
+		protected CategoryProfile[] compute() {
+			final List<KindSum> kinds = new ArrayList<KindSum>(
+					CategoryProfile.MIN + 1);
+			for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+					kind++) {
+				kinds.add(new KindSum(kind, timestamp, children, step));
+			}
+			invokeAll(kinds);
+			final CategoryProfile[] result = new CategoryProfile[CATEGORIES.length];
+			for (final KindSum kind : kinds) {
+				final PowerTimeLine[] lines = kind.join();
+				for (int i = 0; i < lines.length; i++) {
+					if (lines[i] == null) {
+						continue;
+					}
+					if (result[i] == null) {
+						result[i] = new CategoryProfile();
+					}
+					result[i].setLine(kind.kind, lines[i]);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Sums one kind of line of all categories, with one subtask per
+	 * category, and then the ALL category from the category sums. The result
+	 * is indexed by category ordinal, null for categories without children.
+	 */
+	private static final class KindSum extends RecursiveTask<PowerTimeLine[]> {
+		private static final long					serialVersionUID	= 1L;
+		private final int							kind;
+		private final DateTime						timestamp;
+		private final List<List<CategoryProfile>>	children;
+		private final long							step;
+
+		private KindSum(final int kind, final DateTime timestamp,
+				final List<List<CategoryProfile>> children, final long step) {
+			this.kind = kind;
+			this.timestamp = timestamp;
+			this.children = children;
+			this.step = step;
+		}
+
+		@Override
+		protected PowerTimeLine[] compute() {
+			final LineSum[] tasks = new LineSum[CATEGORIES.length];
+			final List<LineSum> forked = new ArrayList<LineSum>(
+					CATEGORIES.length);
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				final List<CategoryProfile> catChildren = children.get(i);
+				if (!catChildren.isEmpty()) {
+					tasks[i] = new LineSum(kind, timestamp, catChildren, 0,
+							catChildren.size(), step);
+					forked.add(tasks[i]);
+				}
+			}
+			invokeAll(forked);
+			final CategoryProfile[] sums = new CategoryProfile[CATEGORIES.length];
+			final List<CategoryProfile> parts = new ArrayList<CategoryProfile>(
+					forked.size());
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				if (tasks[i] != null) {
+					sums[i] = tasks[i].join();
+					parts.add(sums[i]);
+				}
+			}
+			sums[Categories.ALL.ordinal()] = CategoryProfile.sumLine(kind,
+					timestamp, parts, step);
+			final PowerTimeLine[] result = new PowerTimeLine[CATEGORIES.length];
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				if (sums[i] != null) {
+					sums[i].materialize(timestamp);
+					result[i] = sums[i].getLine(kind);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Sums one kind of line of a range of children of one category, split in
+	 * halves until at most SUM_THRESHOLD children are left. The sum is
+	 * carried as grid or as line, see {@link CategoryProfile#sumLine}.
+	 */
+	private static final class LineSum extends RecursiveTask<CategoryProfile> {
+		private static final long				serialVersionUID	= 1L;
+		private final int						kind;
+		private final DateTime					timestamp;
+		private final List<CategoryProfile>		children;
+		private final int						from;
+		private final int						until;
+		private final long						step;
+
+		private LineSum(final int kind, final DateTime timestamp,
+				final List<CategoryProfile> children, final int from,
+				final int until, final long step) {
+			this.kind = kind;
+			this.timestamp = timestamp;
+			this.children = children;
+			this.from = from;
+			this.until = until;
+			this.step = step;
+		}
+
+		@Override
+		protected CategoryProfile compute() {
+			if (until - from <= SUM_THRESHOLD) {
+				return CategoryProfile.sumLine(kind, timestamp,
+						children.subList(from, until), step);
+			}
+			final int middle = (from + until) >>> 1;
+			final LineSum left = new LineSum(kind, timestamp, children, from,
+					middle, step);
+			left.fork();
+			final CategoryProfile right = new LineSum(kind, timestamp,
+					children, middle, until, step).compute();
+			final List<CategoryProfile> parts = new ArrayList<CategoryProfile>(2);
+			parts.add(left.join());
+			parts.add(right);
+			return CategoryProfile.sumLine(kind, timestamp, parts, step);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#clone()
+	 */
+	public PowerProfile clone() {
+		final PowerProfile result = new PowerProfile(timestamp);
+		result.setTemperature(temperature);
+		result.setControlMode(controlMode.clone());
+		for (final Categories category : CATEGORIES) {
+			final CategoryProfile cat = categories[category.ordinal()];
+			if (cat == null) {
+				continue;
+			}
+			final CategoryProfile copy = new CategoryProfile();
+			copy.setDemand(cat.getDemand().clone());
+			copy.setExpectedFlexibilityMaxInWatts(cat
+					.getExpectedFlexibilityMaxInWatts().clone());
+			copy.setExpectedFlexibilityMinInWatts(cat
+					.getExpectedFlexibilityMinInWatts().clone());
+			result.setCategoryReport(category, copy);
+		}
+		return result;
+	}
+
 	/**
 	 * Sets the category report.
 	 *
@@ -183,9 +687,25 @@ public class PowerProfile {
 	 * @param report
 	 *            the report
 	 */
+	public void setCategoryReport(final Categories category,
+			final CategoryProfile report) {
+		categories[category.ordinal()] = report;
+	}
+
+	/**
+	 * Sets the category report. Unknown categories are ignored.
+	 *
+	 * @param category
+	 *            the category name
+	 * @param report
+	 *            the report
+	 */
 	public void setCategoryReport(final String category,
 			final CategoryProfile report) {
-		reports.put(category, report);
+		final Categories cat = category(category);
+		if (cat != null) {
+			setCategoryReport(cat, report);
+		}
 	}
 
 	/**
@@ -246,22 +766,72 @@ public class PowerProfile {
 	}
 
 	/**
-	 * Gets the reports.
+	 * Gets the reports, as a new map from category name to report, with an
+	 * empty report for each empty category.
 	 *
 	 * @return the reports
 	 */
 	public Map<String, CategoryProfile> getReports() {
+		final Map<String, CategoryProfile> reports = new HashMap<String, CategoryProfile>();
+		for (final Categories cat : CATEGORIES) {
+			final CategoryProfile report = categories[cat.ordinal()];
+			reports.put(cat.name(), report == null ? emptyReport() : report);
+		}
 		return reports;
 	}
 
 	/**
-	 * Sets the reports.
+	 * Sets the reports, from a map from category name to report. Empty
+	 * reports are kept as empty categories, unknown categories are ignored.
 	 *
 	 * @param reports
 	 *            the reports
 	 */
 	public void setReports(Map<String, CategoryProfile> reports) {
-		this.reports = reports;
+		final CategoryProfile[] result = new CategoryProfile[CATEGORIES.length];
+		for (final Map.Entry<String, CategoryProfile> entry : reports
+				.entrySet()) {
+			final Categories cat = category(entry.getKey());
+			if (cat != null && !isEmpty(entry.getValue())) {
+				result[cat.ordinal()] = entry.getValue();
+			}
+		}
+		this.categories = result;
+	}
+
+	private CategoryProfile emptyReport() {
+		final CategoryProfile report = new CategoryProfile();
+		report.setDemand(new PowerTimeLine(timestamp));
+		report.setExpectedFlexibilityMaxInWatts(new PowerTimeLine(timestamp));
+		report.setExpectedFlexibilityMinInWatts(new PowerTimeLine(timestamp));
+		return report;
+	}
+
+	private static boolean isEmpty(final CategoryProfile report) {
+		if (report == null) {
+			return true;
+		}
+		for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN;
+				kind++) {
+			final PowerTimeLine line = report.getLine(kind);
+			if (line == null || line.size() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The category with the given name, or null (logged) if there is none.
+	 */
+	private static Categories category(final String name) {
+		for (final Categories cat : CATEGORIES) {
+			if (cat.name().equals(name)) {
+				return cat;
+			}
+		}
+		LOG.warning("Ignoring unknown category: " + name);
+		return null;
 	}
 
 }
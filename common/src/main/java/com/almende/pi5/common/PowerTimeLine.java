@@ -5,22 +5,44 @@
 package com.almende.pi5.common;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collection;
 
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
-import org.joda.time.Interval;
 
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * The Class PowerTimeLine.
+ * The series is stored as two parallel arrays (offsets in milliseconds
+ * relative to the timestamp, values in Watt), sorted by offset. On the wire it
+ * is still presented as a list of {@link PowerTime} objects.
  */
 public class PowerTimeLine {
+	/** The default timeslot length of lossy compaction (ms): 15 minutes. */
+	public static final long		DEFAULT_SLOT_LENGTH	= 15 * 60 * 1000;
+
+	private static final long[]		NO_OFFSETS	= new long[0];
+	private static final double[]	NO_VALUES	= new double[0];
+
 	private DateTime				timestamp	= DateTime.now();
-	private ArrayList<PowerTime>	series		= new ArrayList<PowerTime>();
+	private long[]					offsets		= NO_OFFSETS;
+	private double[]				values		= NO_VALUES;
+	private int						size		= 0;
+	/*
+	 * Lazily built running integral (Watt * milliseconds) from the first point
+	 * up to each point, dropped on every change of the series. Volatile, so
+	 * timelines that are no longer changed can be read from several threads.
+	 */
+	private volatile double[]		integrals	= null;
+	/* Lazily built summary statistics, dropped like the integrals. */
+	private volatile Summary		summary		= null;
+	/* Lazily taken immutable snapshot, dropped like the integrals. */
+	private volatile ImmutablePowerTimeLine	snapshot	= null;
+	/* Counts the changes of the series, for caches of derived lines. */
+	private long					version		= 0;
 
 	/**
 	 * Instantiates a new power time line.
@@ -37,6 +59,66 @@ public class PowerTimeLine {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * Instantiates a new power time line, taking ownership of the first size
+	 * points of the given arrays.
+	 */
+	PowerTimeLine(final DateTime timestamp, final long[] offsets,
+			final double[] values, final int size) {
+		this.timestamp = timestamp;
+		this.offsets = offsets;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * Take an immutable snapshot of this timeline, which can be shared and
+	 * serialized without locking this timeline. The snapshot is kept until
+	 * this timeline changes, so repeated calls on a timeline that is no
+	 * longer changed don't copy it again.
+	 *
+	 * @return the immutable power time line
+	 */
+	public ImmutablePowerTimeLine snapshot() {
+		ImmutablePowerTimeLine result = snapshot;
+		if (result == null) {
+			result = ImmutablePowerTimeLine.of(timestamp, offsets, values, size);
+			snapshot = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Start a lazy expression on this timeline, see {@link TimeLineExpression}.
+	 *
+	 * @return the time line expression
+	 */
+	public TimeLineExpression expression() {
+		return TimeLineExpression.of(this);
+	}
+
+	/**
+	 * The number of points in the series.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * The time of the point with the given index, in milliseconds since the
+	 * epoch.
+	 */
+	long timeAt(final int index) {
+		return timestamp.getMillis() + offsets[index];
+	}
+
+	/**
+	 * The value of the point with the given index.
+	 */
+	double valueAt(final int index) {
+		return values[index];
+	}
+
 	/**
 	 * Gets the timestamp.
 	 *
@@ -54,15 +136,22 @@ public class PowerTimeLine {
 	 */
 	public void setTimestamp(DateTime timestamp) {
 		this.timestamp = timestamp;
+		snapshot = null;
+		version++;
 	}
 
 	/**
-	 * Gets the series.
+	 * Gets the series, as a copy: changing the returned list doesn't change
+	 * this timeline.
 	 *
 	 * @return the series
 	 */
 	public ArrayList<PowerTime> getSeries() {
-		return series;
+		final ArrayList<PowerTime> result = new ArrayList<PowerTime>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(new PowerTime(offsets[i], values[i]));
+		}
+		return result;
 	}
 
 	/**
@@ -74,15 +163,20 @@ public class PowerTimeLine {
 	 */
 	@JsonIgnore
 	public Double getValueAt(DateTime timestamp) {
-		long offset = new Duration(this.timestamp, timestamp).getMillis();
-		PowerTime oldVal = null;
-		for (PowerTime pt : series) {
-			if (pt.getOffset() > offset) {
-				return (oldVal == null) ? 0 : oldVal.getValue();
-			}
-			oldVal = pt;
-		}
-		return (oldVal == null) ? 0 : oldVal.getValue();
+		return getValueAt(timestamp.getMillis());
+	}
+
+	/**
+	 * Gets the value at.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @return the value at
+	 */
+	@JsonIgnore
+	public double getValueAt(final long time) {
+		final int index = upperBound(time - timestamp.getMillis());
+		return (index == 0) ? 0 : values[index - 1];
 	}
 
 	/**
@@ -95,35 +189,72 @@ public class PowerTimeLine {
 	 * @return the power time line
 	 */
 	public PowerTimeLine addValueAt(final DateTime timestamp, final double value) {
-		long offset = new Duration(this.timestamp, timestamp).getMillis();
+		return addValueAt(timestamp.getMillis(), value);
+	}
+
+	/**
+	 * Adds the value at.
+	 *
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @param value
+	 *            the value
+	 * @return the power time line
+	 */
+	public PowerTimeLine addValueAt(final long time, final double value) {
+		final long offset = time - timestamp.getMillis();
 
-		if (series.isEmpty()) {
-			series.add(new PowerTime(offset, value));
+		if (size == 0 || offsets[size - 1] < offset) {
+			append(offset, value);
 		} else {
-			PowerTime last = series.get(series.size() - 1);
-			if (last.getOffset() < offset) {
-				series.add(new PowerTime(offset, value));
+			final int index = lowerBound(offset);
+			if (offsets[index] == offset) {
+				values[index] = value;
+				changed();
 			} else {
-				for (int i = 0; i < series.size(); i++) {
-					PowerTime pt = series.get(i);
-					if (pt.getOffset() < offset) {
-						continue;
-					}
-					if (pt.getOffset() == offset) {
-						pt.setValue(value);
-					} else {
-						series.add(i, new PowerTime(offset, value));
-					}
-					break;
-				}
+				insert(index, offset, value);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Append a sorted run of points to the end of this timeline, in one bulk
+	 * copy. The offsets (milliseconds, relative to the timestamp) must be
+	 * strictly increasing and lie after the last point of this timeline.
+	 *
+	 * @param offsets
+	 *            the offsets
+	 * @param values
+	 *            the values (Watt)
+	 * @return this for chaining
+	 */
+	public PowerTimeLine appendSorted(final long[] offsets,
+			final double[] values) {
+		if (offsets.length != values.length) {
+			throw new IllegalArgumentException("Got " + offsets.length
+					+ " offsets, but " + values.length + " values");
+		}
+		long last = size == 0 ? Long.MIN_VALUE : this.offsets[size - 1];
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] <= last && (i > 0 || size > 0)) {
+				throw new IllegalArgumentException("Offset " + offsets[i]
+						+ " at index " + i + " is not after " + last);
 			}
+			last = offsets[i];
 		}
+		ensureCapacity(size + offsets.length);
+		System.arraycopy(offsets, 0, this.offsets, size, offsets.length);
+		System.arraycopy(values, 0, this.values, size, values.length);
+		size += offsets.length;
+		changed();
 		return this;
 	}
 
 	/**
 	 * Make this TL discrete, returning the TL;
 	 * As a side effect, removes values outside the start and end times.
+	 * The end of the last whole step ends the TL with a zero value.
 	 *
 	 * @param start
 	 *            the start
@@ -136,54 +267,119 @@ public class PowerTimeLine {
 	@JsonIgnore
 	public PowerTimeLine discrete(final DateTime start, final DateTime end,
 			final Duration stepSize) {
-		final PowerTimeLine newTL = new PowerTimeLine();
-		newTL.timestamp = this.timestamp;
-		final ArrayList<PowerTime> steps = new ArrayList<PowerTime>();
-
-		long offset = new Duration(timestamp, start).getMillis();
-		Interval interval = stepSize.toIntervalFrom(start);
-		while (interval.getEnd().isBefore(end)
-				|| interval.getEnd().isEqual(end)) {
-			steps.add(new PowerTime(offset, 0));
-			offset += interval.toDurationMillis();
-			interval = stepSize.toIntervalFrom(timestamp
-					.plusMillis((int) offset));
-		}
-		newTL.setSeries(steps);
-		this.add(newTL).zeroBefore(start).zeroFrom(end);
-
-		final Duration diff = new Duration(start, end);
-		if (series.size() > (diff.getMillis() / stepSize.getMillis())) {
-			int index = 0;
-			long expectedOffset = new Duration(timestamp, start).getMillis()
-					+ stepSize.getMillis();
-			while (index < series.size() - 1) {
-				PowerTime pt = series.get(index);
-				ArrayList<PowerTime> temp = new ArrayList<PowerTime>();
-
-				int nextIndex = index + 1;
-				PowerTime next = series.get(nextIndex);
-				while (next.getOffset() < expectedOffset) {
-					temp.add(next);
-					series.remove(nextIndex);
-					if (nextIndex == series.size()) {
-						break;
-					}
-					next = series.get(nextIndex);
-				}
-				if (temp.size() > 0) {
-					temp.add(0, pt);
-					double integral = getIntegral(pt.getOffset(),
-							pt.getOffset() + stepSize.getMillis(), temp);
-					series.set(index, new PowerTime(pt.getOffset(), integral
-							/ stepSize.getMillis()));
-				}
-				index++;
-				expectedOffset += stepSize.getMillis();
-			}
+		final PowerTimeLine result = discreteLine(start, end, stepSize);
+		this.offsets = result.offsets;
+		this.values = result.values;
+		this.size = result.size;
+		changed();
+		return this;
+	}
+
+	private PowerTimeLine discreteLine(final DateTime start,
+			final DateTime end, final Duration stepSize) {
+		final double[] buckets = resample(start, end, stepSize,
+				BucketReducer.MEAN);
+		final long first = start.getMillis() - timestamp.getMillis();
+		final long step = stepSize.getMillis();
+		final long[] resOffsets = new long[buckets.length + 1];
+		final double[] resValues = new double[buckets.length + 1];
+		for (int i = 0; i <= buckets.length; i++) {
+			resOffsets[i] = first + i * step;
 		}
+		System.arraycopy(buckets, 0, resValues, 0, buckets.length);
 
-		return this;
+		final PowerTimeLine result = new PowerTimeLine(timestamp);
+		result.offsets = resOffsets;
+		result.values = resValues;
+		result.size = resOffsets.length;
+		return result;
+	}
+
+	/**
+	 * Resample this TL into buckets of stepSize, from start until the last
+	 * whole step before end. This TL is left untouched.
+	 *
+	 * @param start
+	 *            the start
+	 * @param end
+	 *            the end
+	 * @param stepSize
+	 *            the step size
+	 * @param reducer
+	 *            how to reduce the values in each bucket
+	 * @return the value of each bucket
+	 */
+	@JsonIgnore
+	public double[] resample(final DateTime start, final DateTime end,
+			final Duration stepSize, final BucketReducer reducer) {
+		final long step = stepSize.getMillis();
+		final long steps = (end.getMillis() - start.getMillis()) / step;
+		return resample(start.getMillis(), step, reducer,
+				new double[(int) Math.max(0, steps)]);
+	}
+
+	/**
+	 * Resample this TL into the given target array, one bucket of step
+	 * milliseconds per element, in a single pass over the series. This TL is
+	 * left untouched.
+	 *
+	 * @param start
+	 *            the start of the first bucket, in milliseconds since the
+	 *            epoch
+	 * @param step
+	 *            the step size in milliseconds
+	 * @param reducer
+	 *            how to reduce the values in each bucket
+	 * @param target
+	 *            the target array, filled from index 0
+	 * @return the target array
+	 */
+	@JsonIgnore
+	public double[] resample(final long start, final long step,
+			final BucketReducer reducer, final double[] target) {
+		long offset = start - timestamp.getMillis();
+		int index = upperBound(offset);
+		double current = (index == 0) ? 0 : values[index - 1];
+		for (int bucket = 0; bucket < target.length; bucket++) {
+			while (index < size && offsets[index] <= offset) {
+				current = values[index++];
+			}
+			final long bucketEnd = offset + step;
+			if (index == size || offsets[index] >= bucketEnd) {
+				// Nothing changes within this bucket
+				target[bucket] = current;
+				offset = bucketEnd;
+				continue;
+			}
+			double integral = 0;
+			double max = current;
+			double min = current;
+			long from = offset;
+			while (index < size && offsets[index] < bucketEnd) {
+				integral += current * (offsets[index] - from);
+				from = offsets[index];
+				current = values[index++];
+				max = Math.max(max, current);
+				min = Math.min(min, current);
+			}
+			switch (reducer) {
+				case MEAN:
+					integral += current * (bucketEnd - from);
+					target[bucket] = integral / step;
+					break;
+				case MAX:
+					target[bucket] = max;
+					break;
+				case MIN:
+					target[bucket] = min;
+					break;
+				case LAST:
+					target[bucket] = current;
+					break;
+			}
+			offset = bucketEnd;
+		}
+		return target;
 	}
 
 	/**
@@ -193,21 +389,123 @@ public class PowerTimeLine {
 	 */
 	@JsonIgnore
 	public PowerTimeLine compact() {
-		if (series.size() == 0) {
-			return this;
+		int write = 1;
+		for (int read = 1; read < size; read++) {
+			if (values[read] != values[write - 1]) {
+				offsets[write] = offsets[read];
+				values[write++] = values[read];
+			}
+		}
+		if (write < size) {
+			size = write;
+			changed();
+		}
+		return this;
+	}
+
+	/**
+	 * Lossy compact in timeslots of the default length, see
+	 * {@link #compact(double, double, long)} and {@link #DEFAULT_SLOT_LENGTH}.
+	 *
+	 * @param absTolerance
+	 *            the maximum error in value (Watt)
+	 * @param energyTolerance
+	 *            the maximum energy error in each timeslot (Joule)
+	 * @return the power time line
+	 */
+	public PowerTimeLine compact(final double absTolerance,
+			final double energyTolerance) {
+		return compact(absTolerance, energyTolerance, DEFAULT_SLOT_LENGTH);
+	}
+
+	/**
+	 * Lossy compact: drop points whose value is within absTolerance of the
+	 * last kept point, letting that value hold instead. A point is only
+	 * dropped if the sum of the absolute energy errors in each timeslot it
+	 * affects stays within energyTolerance. The timeslots are slotLength long
+	 * and aligned on the timestamp. The last point is only dropped if it has
+	 * the same value, as its error is unbounded. compact(0, 0, slotLength) is
+	 * the same as compact().
+	 *
+	 * @param absTolerance
+	 *            the maximum error in value (Watt)
+	 * @param energyTolerance
+	 *            the maximum energy error in each timeslot (Joule)
+	 * @param slotLength
+	 *            the timeslot length (ms)
+	 * @return the power time line
+	 */
+	public PowerTimeLine compact(final double absTolerance,
+			final double energyTolerance, final long slotLength) {
+		if (absTolerance < 0 || energyTolerance < 0) {
+			throw new IllegalArgumentException("Tolerances must not be negative: "
+					+ absTolerance + ", " + energyTolerance);
 		}
-		int index = 0;
-		while (index < series.size()) {
-			PowerTime pt = series.get(index);
-			while ((index < series.size() - 1)
-					&& pt.getValue() == series.get(index + 1).getValue()) {
-				series.remove(index + 1);
+		if (slotLength <= 0) {
+			throw new IllegalArgumentException("Slot length must be positive: "
+					+ slotLength);
+		}
+		int write = 1;
+		// The energy error so far in the timeslot errorSlot
+		long errorSlot = Long.MIN_VALUE;
+		double error = 0;
+		for (int read = 1; read < size; read++) {
+			final double diff = Math.abs(values[read] - values[write - 1]);
+			boolean drop = diff <= absTolerance;
+			if (drop && diff != 0) {
+				drop = read + 1 < size
+						&& withinSlotError(diff, offsets[read],
+								offsets[read + 1], slotLength, errorSlot,
+								error, energyTolerance);
+			}
+			if (!drop) {
+				offsets[write] = offsets[read];
+				values[write++] = values[read];
+			} else if (diff != 0) {
+				// Only the last timeslot can get more errors later on
+				final long until = offsets[read + 1];
+				final long lastSlot = slotOf(until - 1, slotLength);
+				final double lastError = diff
+						* (until - Math.max(lastSlot * slotLength,
+								offsets[read])) / 1000.0;
+				error = (lastSlot == errorSlot) ? error + lastError : lastError;
+				errorSlot = lastSlot;
 			}
-			index++;
+		}
+		if (write < size) {
+			size = write;
+			changed();
 		}
 		return this;
 	}
 
+	/**
+	 * Check if an error of diff between from and until keeps the energy error
+	 * of each timeslot within tolerance, given the error so far in errorSlot.
+	 */
+	private static boolean withinSlotError(final double diff, final long from,
+			final long until, final long slotLength, final long errorSlot,
+			final double error, final double tolerance) {
+		final long firstSlot = slotOf(from, slotLength);
+		final long lastSlot = slotOf(until - 1, slotLength);
+		final double before = (firstSlot == errorSlot) ? error : 0;
+		if (firstSlot == lastSlot) {
+			return before + diff * (until - from) / 1000.0 <= tolerance;
+		}
+		final double first = diff * ((firstSlot + 1) * slotLength - from)
+				/ 1000.0;
+		final double full = (lastSlot - firstSlot > 1) ? diff * slotLength
+				/ 1000.0 : 0;
+		final double last = diff * (until - lastSlot * slotLength) / 1000.0;
+		return before + first <= tolerance && full <= tolerance
+				&& last <= tolerance;
+	}
+
+	private static long slotOf(final long offset, final long slotLength) {
+		return offset >= 0 ? offset / slotLength : -((-offset - 1) / slotLength)
+				- 1;
+	}
+
 	/**
 	 * Gets the discrete series.
 	 *
@@ -222,7 +520,7 @@ public class PowerTimeLine {
 	@JsonIgnore
 	public ArrayList<PowerTime> getDiscreteSeries(DateTime start, DateTime end,
 			Duration stepSize) {
-		return this.clone().discrete(start, end, stepSize).getSeries();
+		return discreteLine(start, end, stepSize).getSeries();
 	}
 
 	/**
@@ -232,7 +530,16 @@ public class PowerTimeLine {
 	 *            the new series
 	 */
 	public void setSeries(ArrayList<PowerTime> series) {
-		this.series = series;
+		final int length = series.size();
+		offsets = length == 0 ? NO_OFFSETS : new long[length];
+		values = length == 0 ? NO_VALUES : new double[length];
+		for (int i = 0; i < length; i++) {
+			final PowerTime pt = series.get(i);
+			offsets[i] = pt.getOffset();
+			values[i] = pt.getValue();
+		}
+		size = length;
+		changed();
 	}
 
 	/**
@@ -247,41 +554,27 @@ public class PowerTimeLine {
 	@JsonIgnore
 	public double getAverageWatts(final DateTime fromDateTime,
 			final DateTime untilDateTime) {
-		final double difference = new Duration(fromDateTime, untilDateTime)
-				.getMillis()/1000.0;
-		if (difference > 0) {
-			return getIntegral(fromDateTime, untilDateTime) / difference;
-		} else {
-			return 0;
-		}
+		return getAverageWatts(fromDateTime.getMillis(),
+				untilDateTime.getMillis());
 	}
 
-	private double getIntegral(final long from, final long until,
-			List<PowerTime> items) {
-
-		if (items.size() == 0) {
+	/**
+	 * Gets the average watts.
+	 *
+	 * @param from
+	 *            the from time, in milliseconds since the epoch
+	 * @param until
+	 *            the until time, in milliseconds since the epoch
+	 * @return the average watts
+	 */
+	@JsonIgnore
+	public double getAverageWatts(final long from, final long until) {
+		final double difference = (until - from) / 1000.0;
+		if (difference > 0) {
+			return getIntegral(from, until) / difference;
+		} else {
 			return 0;
 		}
-
-		double result = 0;
-		long oldOffset = from;
-		double val = 0;
-		for (PowerTime pt : items) {
-
-			if (pt.getOffset() < from) {
-				val = pt.getValue();
-				continue;
-			}
-			if (pt.getOffset() > until) {
-				break;
-			}
-			result += val * (pt.getOffset() - oldOffset);
-			val = pt.getValue();
-			oldOffset = pt.getOffset();
-		}
-		result += val * (until - oldOffset);
-		return result;
-
 	}
 
 	/**
@@ -296,9 +589,105 @@ public class PowerTimeLine {
 	@JsonIgnore
 	public double getIntegral(final DateTime fromDateTime,
 			final DateTime untilDateTime) {
-		final long from = new Duration(timestamp, fromDateTime).getMillis();
-		final long until = new Duration(timestamp, untilDateTime).getMillis();
-		return getIntegral(from, until, this.series) / 1000.0;
+		return getIntegral(fromDateTime.getMillis(), untilDateTime.getMillis());
+	}
+
+	/**
+	 * Gets the integral.
+	 *
+	 * @param fromTime
+	 *            the from time, in milliseconds since the epoch
+	 * @param untilTime
+	 *            the until time, in milliseconds since the epoch
+	 * @return the integral
+	 */
+	@JsonIgnore
+	public double getIntegral(final long fromTime, final long untilTime) {
+		final long from = fromTime - timestamp.getMillis();
+		final long until = untilTime - timestamp.getMillis();
+		final double[] running = runningIntegrals();
+		return (integralUntil(running, until, upperBound(until)) - integralUntil(
+				running, from, upperBound(from))) / 1000.0;
+	}
+
+	/**
+	 * Gets the integral (energy in Joule) of each bucket between the given
+	 * boundaries, in one pass over the series. The boundaries are in
+	 * milliseconds since the epoch and should be in increasing order.
+	 *
+	 * @param boundaries
+	 *            the boundaries of the buckets
+	 * @return the integral of each bucket, one less than the number of
+	 *         boundaries
+	 */
+	@JsonIgnore
+	public double[] getIntegrals(final long[] boundaries) {
+		if (boundaries.length < 2) {
+			return new double[0];
+		}
+		final double[] result = new double[boundaries.length - 1];
+		final Cursor cursor = new Cursor();
+		double previous = cursor.moveTo(boundaries[0]).running();
+		for (int i = 1; i < boundaries.length; i++) {
+			final double current = cursor.moveTo(boundaries[i]).running();
+			result[i - 1] = (current - previous) / 1000.0;
+			previous = current;
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the summary statistics of this timeline. They are computed once
+	 * after each change of the series, so repeated calls are cheap.
+	 *
+	 * @return the summary
+	 */
+	@JsonIgnore
+	public Summary getSummary() {
+		Summary result = summary;
+		if (result == null) {
+			result = new Summary(this);
+			summary = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Gets a new cursor on this timeline, for querying it at increasing times.
+	 *
+	 * @return the cursor
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * The running integral up to the given offset, from the start of the
+	 * series; index is the index of the first point after the offset.
+	 */
+	private double integralUntil(final double[] running, final long offset,
+			final int index) {
+		if (index == 0) {
+			return 0;
+		}
+		return running[index - 1] + values[index - 1]
+				* (offset - offsets[index - 1]);
+	}
+
+	/**
+	 * Gets the running integrals, building them if the series changed.
+	 */
+	private double[] runningIntegrals() {
+		double[] running = integrals;
+		if (running == null) {
+			running = new double[size];
+			for (int i = 1; i < size; i++) {
+				running[i] = running[i - 1] + values[i - 1]
+						* (offsets[i] - offsets[i - 1]);
+			}
+			integrals = running;
+		}
+		return running;
 	}
 
 	/**
@@ -356,101 +745,948 @@ public class PowerTimeLine {
 		return operation(new minimum(), other);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see java.lang.Object#clone()
+	/**
+	 * Merge the two timelines (adding values) and compact the result in the
+	 * same pass, returning this one. Same as add(other).compact().
+	 *
+	 * @param other
+	 *            the other
+	 * @return the power time line
 	 */
-	public PowerTimeLine clone() {
-		final PowerTimeLine result = new PowerTimeLine();
-		result.timestamp = this.timestamp;
-		for (PowerTime pt : this.series) {
-			result.series.add(new PowerTime(pt.getOffset(), pt.getValue()));
-		}
-		return result;
+	public PowerTimeLine addCompact(final PowerTimeLine other) {
+		return operation(new addition(), other, true);
 	}
 
-	private PowerTimeLine operation(operator op, PowerTimeLine other) {
-		if (other.series.size() == 0) {
-			return this;
-		}
-		final long offset = new Duration(this.timestamp, other.timestamp)
-				.getMillis();
-
-		final ArrayList<PowerTime> result = new ArrayList<PowerTime>();
-		if (this.series.size() == 0) {
-			for (PowerTime pt : other.series) {
-				result.add(new PowerTime(pt.getOffset() + offset, op.doOp(0,
-						pt.getValue())));
-			}
-			this.series = result;
-			return this;
-		}
-
-		PowerTime val_mine = null;
-		PowerTime val_other = null;
-		int index_mine = 0;
-		int index_other = 0;
-		double value_mine = 0;
-		double value_other = 0;
-
-		while (index_mine < this.series.size()
-				&& index_other < other.series.size()) {
-			val_mine = this.series.get(index_mine);
-			val_other = other.series.get(index_other);
-			switch ((int) Math.signum(val_other.getOffset() + offset
-					- val_mine.getOffset())) {
-				case 1:
-					value_mine = val_mine.getValue();
-					result.add(new PowerTime(val_mine.getOffset(), op.doOp(
-							value_mine, value_other)));
-					index_mine++;
-					break;
-
-				case 0:
-					value_mine = val_mine.getValue();
-					value_other = val_other.getValue();
-					result.add(new PowerTime(val_mine.getOffset(), op.doOp(
-							value_mine, value_other)));
-					index_mine++;
-					index_other++;
-					break;
-				case -1:
-					value_other = val_other.getValue();
-					result.add(new PowerTime(val_other.getOffset() + offset, op
-							.doOp(value_mine, value_other)));
-					index_other++;
-					break;
-			}
-		}
-
-		for (int p = index_mine; p < this.series.size(); p++) {
-			PowerTime pt = this.series.get(p);
-			result.add(new PowerTime(pt.getOffset(), op.doOp(pt.getValue(),
-					value_other)));
-		}
-		for (int p = index_other; p < other.series.size(); p++) {
-			PowerTime pt = other.series.get(p);
-			result.add(new PowerTime(pt.getOffset() + offset, op.doOp(
-					value_mine, pt.getValue())));
-		}
-
-		this.series = result;
-		return this;
+	/**
+	 * Merge the two timelines (minus values) and compact the result in the
+	 * same pass, returning this one. Same as minus(other).compact().
+	 *
+	 * @param other
+	 *            the other
+	 * @return the power time line
+	 */
+	public PowerTimeLine minusCompact(final PowerTimeLine other) {
+		return operation(new difference(), other, true);
 	}
 
-	private interface operator {
-		double doOp(final double left, final double right);
+	/**
+	 * Merge the two timelines (maximum value) and compact the result in the
+	 * same pass, returning this one. Same as max(other).compact().
+	 *
+	 * @param other
+	 *            the other
+	 * @return the power time line
+	 */
+	public PowerTimeLine maxCompact(final PowerTimeLine other) {
+		return operation(new maximum(), other, true);
 	}
 
-	class addition implements operator {
-		@Override
-		public double doOp(double left, double right) {
-			return left + right;
-		}
+	/**
+	 * Merge the two timelines (minimum value) and compact the result in the
+	 * same pass, returning this one. Same as min(other).compact().
+	 *
+	 * @param other
+	 *            the other
+	 * @return the power time line
+	 */
+	public PowerTimeLine minCompact(final PowerTimeLine other) {
+		return operation(new minimum(), other, true);
 	}
 
-	class difference implements operator {
-
+	/**
+	 * Add the other timeline to this one between from (inclusive) and until
+	 * (exclusive) only, returning this one. Outside that window this timeline
+	 * is left as is; only the points within the window are touched.
+	 *
+	 * @param other
+	 *            the other
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the power time line
+	 */
+	public PowerTimeLine add(final PowerTimeLine other, final long from,
+			final long until) {
+		return operation(new addition(), other, from, until);
+	}
+
+	/**
+	 * Subtract the other timeline from this one between from (inclusive) and
+	 * until (exclusive) only, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the power time line
+	 */
+	public PowerTimeLine minus(final PowerTimeLine other, final long from,
+			final long until) {
+		return operation(new difference(), other, from, until);
+	}
+
+	/**
+	 * Maximum of this and the other timeline between from (inclusive) and
+	 * until (exclusive) only, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the power time line
+	 */
+	public PowerTimeLine max(final PowerTimeLine other, final long from,
+			final long until) {
+		return operation(new maximum(), other, from, until);
+	}
+
+	/**
+	 * Minimum of this and the other timeline between from (inclusive) and
+	 * until (exclusive) only, returning this one.
+	 *
+	 * @param other
+	 *            the other
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the power time line
+	 */
+	public PowerTimeLine min(final PowerTimeLine other, final long from,
+			final long until) {
+		return operation(new minimum(), other, from, until);
+	}
+
+	/**
+	 * Clamp this timeline between lower and upper, limited to the window from
+	 * (inclusive) until (exclusive) and compacted, into a new timeline in a
+	 * single sweep. This timeline is left untouched. The result is the same as
+	 * clone().max(lower).min(upper).zeroBefore(from).zeroFrom(until)
+	 * .compact(); a null or empty bound is ignored.
+	 *
+	 * @param lower
+	 *            the lower bound, or null
+	 * @param upper
+	 *            the upper bound, or null
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the clamped power time line
+	 */
+	public PowerTimeLine clamp(final PowerTimeLine lower,
+			final PowerTimeLine upper, final long from, final long until) {
+		if (until < from) {
+			throw new IllegalArgumentException("Window ends ("
+					+ new DateTime(until) + ") before it starts ("
+					+ new DateTime(from) + ")");
+		}
+		final boolean hasLower = lower != null && lower.size > 0;
+		final boolean hasUpper = upper != null && upper.size > 0;
+		final PowerTimeLine result = new PowerTimeLine(timestamp);
+		if (size == 0 && !hasLower && !hasUpper) {
+			return result;
+		}
+		final long base = timestamp.getMillis();
+		final Sweep sweep = new Sweep(this, hasLower ? lower : this,
+				hasUpper ? upper : this);
+		for (long time = from; time < until; time = sweep.nextChange()) {
+			sweep.moveTo(time);
+			double value = sweep.value(0);
+			if (hasLower) {
+				value = Math.max(value, sweep.value(1));
+			}
+			if (hasUpper) {
+				value = Math.min(value, sweep.value(2));
+			}
+			result.appendCompact(time - base, value);
+		}
+		result.appendCompact(until - base, 0);
+		return result;
+	}
+
+	/**
+	 * Sum all given timelines in a single merge pass, returning a new, compacted
+	 * timeline.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the result
+	 * @param lines
+	 *            the timelines to sum
+	 * @return the sum
+	 */
+	public static PowerTimeLine sum(final DateTime timestamp,
+			final Collection<PowerTimeLine> lines) {
+		return combine(new addition(), 0, timestamp, lines);
+	}
+
+	/**
+	 * Sum all given timelines in a single merge pass, returning a new, compacted
+	 * timeline with the timestamp of the first timeline.
+	 *
+	 * @param lines
+	 *            the timelines to sum
+	 * @return the sum
+	 */
+	public static PowerTimeLine sum(final Collection<PowerTimeLine> lines) {
+		return sum(firstTimestamp(lines), lines);
+	}
+
+	/**
+	 * Maximum value of all given timelines, in a single merge pass, returning a
+	 * new, compacted timeline.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the result
+	 * @param lines
+	 *            the timelines
+	 * @return the maximum
+	 */
+	public static PowerTimeLine maxOf(final DateTime timestamp,
+			final Collection<PowerTimeLine> lines) {
+		return combine(new maximum(), Double.NEGATIVE_INFINITY, timestamp,
+				lines);
+	}
+
+	/**
+	 * Maximum value of all given timelines, in a single merge pass, returning a
+	 * new, compacted timeline with the timestamp of the first timeline.
+	 *
+	 * @param lines
+	 *            the timelines
+	 * @return the maximum
+	 */
+	public static PowerTimeLine maxOf(final Collection<PowerTimeLine> lines) {
+		return maxOf(firstTimestamp(lines), lines);
+	}
+
+	/**
+	 * Minimum value of all given timelines, in a single merge pass, returning a
+	 * new, compacted timeline.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the result
+	 * @param lines
+	 *            the timelines
+	 * @return the minimum
+	 */
+	public static PowerTimeLine minOf(final DateTime timestamp,
+			final Collection<PowerTimeLine> lines) {
+		return combine(new minimum(), Double.POSITIVE_INFINITY, timestamp,
+				lines);
+	}
+
+	/**
+	 * Minimum value of all given timelines, in a single merge pass, returning a
+	 * new, compacted timeline with the timestamp of the first timeline.
+	 *
+	 * @param lines
+	 *            the timelines
+	 * @return the minimum
+	 */
+	public static PowerTimeLine minOf(final Collection<PowerTimeLine> lines) {
+		return minOf(firstTimestamp(lines), lines);
+	}
+
+	private static DateTime firstTimestamp(
+			final Collection<PowerTimeLine> lines) {
+		return lines.isEmpty() ? DateTime.now() : lines.iterator().next()
+				.getTimestamp();
+	}
+
+	/**
+	 * K-way merge of the given timelines: a heap orders the inputs on their
+	 * next offset, a tournament tree holds the combined current value of all
+	 * inputs. Each point costs O(log k), equal values are compacted on the fly.
+	 * Like in {@link #operation(operator, PowerTimeLine)}, a timeline counts
+	 * as zero before its first point, and empty timelines are skipped.
+	 */
+	private static PowerTimeLine combine(final operator op,
+			final double neutral, final DateTime timestamp,
+			final Collection<PowerTimeLine> lines) {
+		final PowerTimeLine result = new PowerTimeLine(timestamp);
+		final PowerTimeLine[] inputs = new PowerTimeLine[lines.size()];
+		final long[] shifts = new long[inputs.length];
+		int count = 0;
+		for (PowerTimeLine line : lines) {
+			if (line.size > 0) {
+				inputs[count] = line;
+				shifts[count] = line.timestamp.getMillis()
+						- timestamp.getMillis();
+				count++;
+			}
+		}
+		if (count == 0) {
+			return result;
+		}
+
+		int leaves = 1;
+		while (leaves < count) {
+			leaves <<= 1;
+		}
+		final double[] tree = new double[2 * leaves];
+		Arrays.fill(tree, leaves + count, 2 * leaves, neutral);
+		for (int node = leaves - 1; node > 0; node--) {
+			tree[node] = op.doOp(tree[2 * node], tree[2 * node + 1]);
+		}
+
+		final int[] positions = new int[count];
+		final long[] keys = new long[count];
+		final int[] heap = new int[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = inputs[i].offsets[0] + shifts[i];
+			heap[i] = i;
+		}
+		int heapSize = count;
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(heap, heapSize, keys, i);
+		}
+
+		while (heapSize > 0) {
+			final long offset = keys[heap[0]];
+			while (heapSize > 0 && keys[heap[0]] == offset) {
+				final int input = heap[0];
+				final PowerTimeLine line = inputs[input];
+
+				int node = leaves + input;
+				tree[node] = line.values[positions[input]++];
+				for (node >>= 1; node > 0; node >>= 1) {
+					tree[node] = op.doOp(tree[2 * node], tree[2 * node + 1]);
+				}
+
+				if (positions[input] < line.size) {
+					keys[input] = line.offsets[positions[input]]
+							+ shifts[input];
+				} else {
+					heap[0] = heap[--heapSize];
+				}
+				siftDown(heap, heapSize, keys, 0);
+			}
+			final double value = tree[1];
+			if (result.size == 0 || result.values[result.size - 1] != value) {
+				result.append(offset, value);
+			}
+		}
+		return result;
+	}
+
+	private static void siftDown(final int[] heap, final int heapSize,
+			final long[] keys, int index) {
+		final int item = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize
+					&& keys[heap[child + 1]] < keys[heap[child]]) {
+				child++;
+			}
+			if (keys[heap[child]] >= keys[item]) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = item;
+	}
+
+	/**
+	 * A cursor on a timeline, remembering its position between queries.
+	 * Moving forward gallops from the current position, so a move over d
+	 * points costs O(log d) and short steps cost amortized O(1); moving
+	 * backward seeks by binary search. Queries don't allocate. The timeline
+	 * must not change while the cursor is in use.
+	 */
+	public final class Cursor {
+		private final long	base	= timestamp.getMillis();
+		private long		offset	= Long.MIN_VALUE;
+		/* Index of the first point after offset */
+		private int			index	= 0;
+
+		private Cursor() {}
+
+		/**
+		 * Move the cursor to the given time.
+		 *
+		 * @param time
+		 *            the time, in milliseconds since the epoch
+		 * @return this for chaining
+		 */
+		public Cursor moveTo(final long time) {
+			final long next = time - base;
+			if (next < offset || index > size) {
+				index = upperBound(next);
+			} else {
+				// Gallop ahead in doubling strides, then search the last one
+				int low = index;
+				int bound = index;
+				int stride = 1;
+				while (bound < size && offsets[bound] <= next) {
+					low = bound + 1;
+					bound += stride;
+					stride <<= 1;
+				}
+				index = upperBound(next, low, Math.min(bound, size));
+			}
+			offset = next;
+			return this;
+		}
+
+		/**
+		 * Gets the value at the current time.
+		 *
+		 * @return the value (Watt)
+		 */
+		public double value() {
+			return (index == 0) ? 0 : values[index - 1];
+		}
+
+		/**
+		 * Gets the integral from the start of the series until the current
+		 * time.
+		 *
+		 * @return the integral (Joule)
+		 */
+		public double integral() {
+			return running() / 1000.0;
+		}
+
+		/**
+		 * Gets the time of the next point after the current time.
+		 *
+		 * @return the time in milliseconds since the epoch, or
+		 *         Long.MAX_VALUE if there is none
+		 */
+		public long nextChange() {
+			return (index < size) ? base + offsets[index] : Long.MAX_VALUE;
+		}
+
+		/**
+		 * Gets the value at the given time.
+		 *
+		 * @param time
+		 *            the time, in milliseconds since the epoch
+		 * @return the value (Watt)
+		 */
+		public double valueAt(final long time) {
+			return moveTo(time).value();
+		}
+
+		/**
+		 * Gets the integral from the start of the series until the given
+		 * time. The difference between two calls is the integral over the
+		 * time in between.
+		 *
+		 * @param time
+		 *            the time, in milliseconds since the epoch
+		 * @return the integral (Joule)
+		 */
+		public double integralTo(final long time) {
+			return moveTo(time).integral();
+		}
+
+		private double running() {
+			return integralUntil(runningIntegrals(), offset, index);
+		}
+	}
+
+	/**
+	 * A sweep over several timelines in lockstep, for example the demand,
+	 * maximum and minimum of one {@link CategoryProfile}.
+	 */
+	public static final class Sweep {
+		private final Cursor[]	cursors;
+
+		/**
+		 * Instantiates a new sweep.
+		 *
+		 * @param lines
+		 *            the lines
+		 */
+		public Sweep(final PowerTimeLine... lines) {
+			cursors = new Cursor[lines.length];
+			for (int i = 0; i < lines.length; i++) {
+				cursors[i] = lines[i].cursor();
+			}
+		}
+
+		/**
+		 * Move all cursors to the given time.
+		 *
+		 * @param time
+		 *            the time, in milliseconds since the epoch
+		 * @return this for chaining
+		 */
+		public Sweep moveTo(final long time) {
+			for (final Cursor cursor : cursors) {
+				cursor.moveTo(time);
+			}
+			return this;
+		}
+
+		/**
+		 * Gets the value of the given line at the current time.
+		 *
+		 * @param line
+		 *            the index of the line
+		 * @return the value (Watt)
+		 */
+		public double value(final int line) {
+			return cursors[line].value();
+		}
+
+		/**
+		 * Gets the integral of the given line until the current time, see
+		 * {@link Cursor#integral()}.
+		 *
+		 * @param line
+		 *            the index of the line
+		 * @return the integral (Joule)
+		 */
+		public double integral(final int line) {
+			return cursors[line].integral();
+		}
+
+		/**
+		 * Gets the values of all lines at the current time.
+		 *
+		 * @param target
+		 *            the target array, one element per line
+		 * @return the target array
+		 */
+		public double[] values(final double[] target) {
+			for (int i = 0; i < cursors.length; i++) {
+				target[i] = cursors[i].value();
+			}
+			return target;
+		}
+
+		/**
+		 * Gets the integrals of all lines until the current time.
+		 *
+		 * @param target
+		 *            the target array, one element per line
+		 * @return the target array
+		 */
+		public double[] integrals(final double[] target) {
+			for (int i = 0; i < cursors.length; i++) {
+				target[i] = cursors[i].integral();
+			}
+			return target;
+		}
+
+		/**
+		 * Gets the time of the next point of any line after the current time.
+		 *
+		 * @return the time in milliseconds since the epoch, or
+		 *         Long.MAX_VALUE if there is none
+		 */
+		public long nextChange() {
+			long next = Long.MAX_VALUE;
+			for (final Cursor cursor : cursors) {
+				next = Math.min(next, cursor.nextChange());
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * Summary statistics of a timeline, over its points: the timeline is zero
+	 * before its first point, and its last value holds after its last point.
+	 */
+	public static final class Summary {
+		private final int		size;
+		private final double	min;
+		private final double	max;
+		private final double	integral;
+		private final long		firstOffset;
+		private final long		lastOffset;
+
+		private Summary(final PowerTimeLine line) {
+			final int size = line.size;
+			double min = 0;
+			double max = 0;
+			if (size > 0) {
+				min = line.values[0];
+				max = line.values[0];
+				for (int i = 1; i < size; i++) {
+					min = Math.min(min, line.values[i]);
+					max = Math.max(max, line.values[i]);
+				}
+			}
+			final double[] running = line.runningIntegrals();
+			this.size = size;
+			this.min = min;
+			this.max = max;
+			this.integral = size > 0 ? running[size - 1] / 1000.0 : 0;
+			this.firstOffset = size > 0 ? line.offsets[0] : 0;
+			this.lastOffset = size > 0 ? line.offsets[size - 1] : 0;
+		}
+
+		/**
+		 * The number of points.
+		 *
+		 * @return the size
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * The lowest value of all points, 0 if there are none.
+		 *
+		 * @return the min (Watt)
+		 */
+		public double getMin() {
+			return min;
+		}
+
+		/**
+		 * The highest value of all points, 0 if there are none.
+		 *
+		 * @return the max (Watt)
+		 */
+		public double getMax() {
+			return max;
+		}
+
+		/**
+		 * The energy from the first until the last point.
+		 *
+		 * @return the integral (Joule)
+		 */
+		public double getIntegral() {
+			return integral;
+		}
+
+		/**
+		 * The average power from the first until the last point, or the value
+		 * of the only point.
+		 *
+		 * @return the mean (Watt)
+		 */
+		public double getMean() {
+			final long duration = lastOffset - firstOffset;
+			return duration > 0 ? integral * 1000.0 / duration : max;
+		}
+
+		/**
+		 * The offset of the first point, 0 if there are none.
+		 *
+		 * @return the first offset (milliseconds, relative to the timestamp)
+		 */
+		public long getFirstOffset() {
+			return firstOffset;
+		}
+
+		/**
+		 * The offset of the last point, 0 if there are none.
+		 *
+		 * @return the last offset (milliseconds, relative to the timestamp)
+		 */
+		public long getLastOffset() {
+			return lastOffset;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#clone()
+	 */
+	public PowerTimeLine clone() {
+		final PowerTimeLine result = new PowerTimeLine();
+		result.timestamp = this.timestamp;
+		if (size > 0) {
+			result.offsets = Arrays.copyOf(offsets, size);
+			result.values = Arrays.copyOf(values, size);
+			result.size = size;
+			result.integrals = integrals;
+			result.summary = summary;
+			result.snapshot = snapshot;
+		}
+		return result;
+	}
+
+	private PowerTimeLine operation(operator op, PowerTimeLine other) {
+		return operation(op, other, false);
+	}
+
+	/**
+	 * Merge other into this timeline, in one pass. If compact, a point with
+	 * the same value as the previous point is dropped while merging.
+	 */
+	private PowerTimeLine operation(final operator op,
+			final PowerTimeLine other, final boolean compact) {
+		if (other.size == 0) {
+			return compact ? compact() : this;
+		}
+		final long offset = other.timestamp.getMillis()
+				- timestamp.getMillis();
+
+		final long[] resOffsets = new long[this.size + other.size];
+		final double[] resValues = new double[this.size + other.size];
+		int count = 0;
+
+		int index_mine = 0;
+		int index_other = 0;
+		double value_mine = 0;
+		double value_other = 0;
+
+		while (index_mine < this.size || index_other < other.size) {
+			final boolean has_mine = index_mine < this.size;
+			final boolean has_other = index_other < other.size;
+			final long offset_mine = has_mine ? this.offsets[index_mine] : 0;
+			final long offset_other = has_other ? other.offsets[index_other]
+					+ offset : 0;
+			final long resOffset;
+			if (!has_other || (has_mine && offset_other > offset_mine)) {
+				value_mine = this.values[index_mine];
+				resOffset = offset_mine;
+				index_mine++;
+			} else if (has_mine && offset_other == offset_mine) {
+				value_mine = this.values[index_mine];
+				value_other = other.values[index_other];
+				resOffset = offset_mine;
+				index_mine++;
+				index_other++;
+			} else {
+				value_other = other.values[index_other];
+				resOffset = offset_other;
+				index_other++;
+			}
+			final double value = op.doOp(value_mine, value_other);
+			if (!compact || count == 0 || resValues[count - 1] != value) {
+				resOffsets[count] = resOffset;
+				resValues[count++] = value;
+			}
+		}
+
+		this.offsets = resOffsets;
+		this.values = resValues;
+		this.size = count;
+		changed();
+		return this;
+	}
+
+	/**
+	 * Merge other into this timeline between from and until only, splicing the
+	 * merged window into the series. Points are only added at from and until
+	 * where the value changes there.
+	 */
+	private PowerTimeLine operation(final operator op,
+			final PowerTimeLine other, final long from, final long until) {
+		if (other.size == 0 || until <= from) {
+			return this;
+		}
+		final PowerTimeLine source = (other == this) ? other.clone() : other;
+		final long fromOffset = from - timestamp.getMillis();
+		final long untilOffset = until - timestamp.getMillis();
+		final long shift = source.timestamp.getMillis()
+				- timestamp.getMillis();
+
+		// My points in [from, until), the other's points in (from, until)
+		final int first = lowerBound(fromOffset);
+		final int last = lowerBound(untilOffset);
+		final int otherFirst = source.upperBound(fromOffset - shift);
+		final int otherLast = source.lowerBound(untilOffset - shift);
+
+		final int capacity = (last - first) + (otherLast - otherFirst) + 2;
+		final long[] resOffsets = new long[capacity];
+		final double[] resValues = new double[capacity];
+		int count = 0;
+
+		final double before = (first == 0) ? 0 : values[first - 1];
+		double valueMine = before;
+		double valueOther = (otherFirst == 0) ? 0
+				: source.values[otherFirst - 1];
+		int mine = first;
+		int theirs = otherFirst;
+		final boolean atFrom = mine < last && offsets[mine] == fromOffset;
+		if (atFrom) {
+			valueMine = values[mine++];
+		}
+		double current = op.doOp(valueMine, valueOther);
+		if (atFrom || current != before) {
+			resOffsets[count] = fromOffset;
+			resValues[count++] = current;
+		}
+		while (mine < last || theirs < otherLast) {
+			final boolean hasMine = mine < last;
+			final boolean hasOther = theirs < otherLast;
+			final long offsetMine = hasMine ? offsets[mine] : 0;
+			final long offsetOther = hasOther ? source.offsets[theirs] + shift
+					: 0;
+			final long resOffset;
+			if (!hasOther || (hasMine && offsetOther > offsetMine)) {
+				valueMine = values[mine++];
+				resOffset = offsetMine;
+			} else if (hasMine && offsetOther == offsetMine) {
+				valueMine = values[mine++];
+				valueOther = source.values[theirs++];
+				resOffset = offsetMine;
+			} else {
+				valueOther = source.values[theirs++];
+				resOffset = offsetOther;
+			}
+			current = op.doOp(valueMine, valueOther);
+			resOffsets[count] = resOffset;
+			resValues[count++] = current;
+		}
+		// Back to my own value at until, unless I have a point there
+		final boolean atUntil = last < size && offsets[last] == untilOffset;
+		if (!atUntil && current != valueMine) {
+			resOffsets[count] = untilOffset;
+			resValues[count++] = valueMine;
+		}
+
+		replace(first, last, count);
+		System.arraycopy(resOffsets, 0, offsets, first, count);
+		System.arraycopy(resValues, 0, values, first, count);
+		return this;
+	}
+
+	/**
+	 * Index of the first point with an offset at or after the given offset
+	 * (size if there is none).
+	 */
+	private int lowerBound(final long offset) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (offsets[mid] < offset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the first point with an offset after the given offset (size if
+	 * there is none). The point before it, if any, holds the value at the
+	 * given offset.
+	 */
+	private int upperBound(final long offset) {
+		return upperBound(offset, 0, size);
+	}
+
+	/**
+	 * As {@link #upperBound(long)}, searching only the indexes from low
+	 * (inclusive) to high (exclusive); high if there is none.
+	 */
+	private int upperBound(final long offset, int low, int high) {
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (offsets[mid] <= offset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity > offsets.length) {
+			final int newCapacity = Math.max(capacity,
+					offsets.length + (offsets.length >> 1) + 4);
+			offsets = Arrays.copyOf(offsets, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+		}
+	}
+
+	private void append(final long offset, final double value) {
+		ensureCapacity(size + 1);
+		offsets[size] = offset;
+		values[size] = value;
+		size++;
+		changed();
+	}
+
+	/**
+	 * Replace all points, taking ownership of the first size points of the
+	 * given arrays.
+	 */
+	void setPoints(final long[] offsets, final double[] values, final int size) {
+		this.offsets = offsets;
+		this.values = values;
+		this.size = size;
+		changed();
+	}
+
+	/**
+	 * Append a point after the last point, unless it has the same value.
+	 */
+	void appendCompact(final long offset, final double value) {
+		if (size == 0 || values[size - 1] != value) {
+			append(offset, value);
+		}
+	}
+
+	private void insert(final int index, final long offset, final double value) {
+		ensureCapacity(size + 1);
+		System.arraycopy(offsets, index, offsets, index + 1, size - index);
+		System.arraycopy(values, index, values, index + 1, size - index);
+		offsets[index] = offset;
+		values[index] = value;
+		size++;
+		changed();
+	}
+
+	/**
+	 * Replaces the points with index from (inclusive) to (exclusive) by count
+	 * points, to be filled in by the caller.
+	 */
+	private void replace(final int from, final int to, final int count) {
+		final int newSize = size - (to - from) + count;
+		ensureCapacity(newSize);
+		System.arraycopy(offsets, to, offsets, from + count, size - to);
+		System.arraycopy(values, to, values, from + count, size - to);
+		size = newSize;
+		changed();
+	}
+
+	/**
+	 * Drop all derived data after a change of the series.
+	 */
+	private void changed() {
+		integrals = null;
+		summary = null;
+		snapshot = null;
+		version++;
+	}
+
+	/**
+	 * The version of this timeline: it changes whenever the values of the
+	 * timeline change, and stays the same while they don't. Moving the
+	 * timestamp with {@link #withTimestamp(DateTime)} doesn't change the
+	 * values.
+	 */
+	long version() {
+		return version;
+	}
+
+	interface operator {
+		double doOp(final double left, final double right);
+	}
+
+	static class addition implements operator {
+		@Override
+		public double doOp(double left, double right) {
+			return left + right;
+		}
+	}
+
+	static class difference implements operator {
+
 		@Override
 		public double doOp(double left, double right) {
 			return left - right;
@@ -458,7 +1694,7 @@ public class PowerTimeLine {
 
 	}
 
-	class multiply implements operator {
+	static class multiply implements operator {
 
 		@Override
 		public double doOp(double left, double right) {
@@ -467,7 +1703,7 @@ public class PowerTimeLine {
 
 	}
 
-	class maximum implements operator {
+	static class maximum implements operator {
 
 		@Override
 		public double doOp(double left, double right) {
@@ -476,7 +1712,7 @@ public class PowerTimeLine {
 
 	}
 
-	class minimum implements operator {
+	static class minimum implements operator {
 
 		@Override
 		public double doOp(double left, double right) {
@@ -495,32 +1731,36 @@ public class PowerTimeLine {
 	 * @return this for chaining
 	 */
 	public PowerTimeLine zeroBetween(final DateTime start, final DateTime end) {
-		if (this.series.size() == 0) {
+		return zeroBetween(start.getMillis(), end.getMillis());
+	}
+
+	/**
+	 * Clear to zero between start (inclusive) and end (exclusive).
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @return this for chaining
+	 */
+	public PowerTimeLine zeroBetween(final long start, final long end) {
+		if (this.size == 0) {
 			return this;
 		}
-		final long startOffset = new Duration(this.timestamp, start)
-				.getMillis();
-		final long endOffset = new Duration(this.timestamp, end).getMillis();
+		final long startOffset = start - timestamp.getMillis();
+		final long endOffset = end - timestamp.getMillis();
+		// replace all values between start incl and end incl.
+		final int from = lowerBound(startOffset);
+		final int to = Math.max(from, upperBound(endOffset));
 		// get current value at end
-		final double endVal = getValueAt(end);
-		// remove all values with index between start incl and end incl.
-		final Iterator<PowerTime> iter = this.series.iterator();
-		int index = 0;
-		while (iter.hasNext()) {
-			final PowerTime item = iter.next();
-			final long offset = item.getOffset();
-			if (offset < startOffset) {
-				index++;
-			} else if (offset >= startOffset && offset <= endOffset) {
-				iter.remove();
-			} else if (offset > endOffset) {
-				break;
-			}
-		}
+		final double endVal = (to == 0) ? 0 : values[to - 1];
+		replace(from, to, 2);
 		// Add zero at start
-		this.series.add(index, new PowerTime(startOffset, 0));
+		offsets[from] = startOffset;
+		values[from] = 0;
 		// add current value at end
-		this.series.add(index + 1, new PowerTime(endOffset, endVal));
+		offsets[from + 1] = endOffset;
+		values[from + 1] = endVal;
 
 		return this;
 	}
@@ -533,25 +1773,25 @@ public class PowerTimeLine {
 	 * @return this for chaining
 	 */
 	public PowerTimeLine zeroFrom(final DateTime start) {
-		if (this.series.size() == 0) {
+		return zeroFrom(start.getMillis());
+	}
+
+	/**
+	 * Clear to zero starting at start (inclusive).
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @return this for chaining
+	 */
+	public PowerTimeLine zeroFrom(final long start) {
+		if (this.size == 0) {
 			return this;
 		}
-		final long startOffset = new Duration(this.timestamp, start)
-				.getMillis();
+		final long startOffset = start - timestamp.getMillis();
 		// remove all values with index after start incl
-		final Iterator<PowerTime> iter = this.series.iterator();
-		int index = 0;
-		while (iter.hasNext()) {
-			final PowerTime item = iter.next();
-			final long offset = item.getOffset();
-			if (offset < startOffset) {
-				index++;
-			} else if (offset >= startOffset) {
-				iter.remove();
-			}
-		}
+		size = lowerBound(startOffset);
 		// Add zero at start
-		this.series.add(index, new PowerTime(startOffset, 0));
+		append(startOffset, 0);
 		return this;
 	}
 
@@ -563,31 +1803,34 @@ public class PowerTimeLine {
 	 * @return this for chaining
 	 */
 	public PowerTimeLine zeroBefore(final DateTime start) {
-		if (this.series.size() == 0) {
+		return zeroBefore(start.getMillis());
+	}
+
+	/**
+	 * Clear to zero before start (exclusive).
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @return this for chaining
+	 */
+	public PowerTimeLine zeroBefore(final long start) {
+		if (this.size == 0) {
 			return this;
 		}
-		final long startOffset = new Duration(this.timestamp, start)
-				.getMillis();
-		final double startVal = getValueAt(start);
-		// remove all values with index before start incl
-		final Iterator<PowerTime> iter = this.series.iterator();
-		while (iter.hasNext()) {
-			final PowerTime item = iter.next();
-			final long offset = item.getOffset();
-			if (offset <= startOffset) {
-				iter.remove();
-			} else {
-				break;
-			}
-		}
-		// Add value at start
-		this.series.add(0, new PowerTime(startOffset, startVal));
+		final long startOffset = start - timestamp.getMillis();
+		// replace all values with index before start incl by the value at
+		// start
+		final int to = upperBound(startOffset);
+		final double startVal = (to == 0) ? 0 : values[to - 1];
+		replace(0, to, 1);
+		offsets[0] = startOffset;
+		values[0] = startVal;
 		return this;
 	}
 
 	/**
 	 * Merge other timeline into this this timeline, replacing all between start
-	 * and end timestamps.
+	 * and end timestamps. Only the window of the other timeline is copied.
 	 *
 	 * @param other
 	 *            the other
@@ -599,9 +1842,52 @@ public class PowerTimeLine {
 	 */
 	public PowerTimeLine merge(final PowerTimeLine other, final DateTime start,
 			final DateTime end) {
-		final PowerTimeLine copy = other.clone().zeroBefore(start)
-				.zeroFrom(end);
-		this.zeroBetween(start, end).add(copy);
+		return merge(other, start.getMillis(), end.getMillis());
+	}
+
+	/**
+	 * Merge other timeline into this this timeline, replacing all between start
+	 * and end times. Only the window of the other timeline is copied.
+	 *
+	 * @param other
+	 *            the other
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @return this for chaining
+	 */
+	public PowerTimeLine merge(final PowerTimeLine other, final long start,
+			final long end) {
+		final long startOffset = start - timestamp.getMillis();
+		final long endOffset = end - timestamp.getMillis();
+		if (other.size == 0 || endOffset <= startOffset) {
+			return zeroBetween(start, end);
+		}
+		final PowerTimeLine source = (other == this) ? other.clone() : other;
+		final long shift = source.timestamp.getMillis()
+				- timestamp.getMillis();
+
+		// The other's value at start and its points between start and end
+		final int otherFrom = source.upperBound(startOffset - shift);
+		final int otherTo = source.lowerBound(endOffset - shift);
+		final double startVal = (otherFrom == 0) ? 0
+				: source.values[otherFrom - 1];
+		// My points between start incl and end incl, and my value at end
+		final int from = lowerBound(startOffset);
+		final int to = upperBound(endOffset);
+		final double endVal = (to == 0) ? 0 : values[to - 1];
+
+		final int count = otherTo - otherFrom;
+		replace(from, to, count + 2);
+		offsets[from] = startOffset;
+		values[from] = startVal;
+		for (int i = 0; i < count; i++) {
+			offsets[from + 1 + i] = source.offsets[otherFrom + i] + shift;
+		}
+		System.arraycopy(source.values, otherFrom, values, from + 1, count);
+		offsets[from + count + 1] = endOffset;
+		values[from + count + 1] = endVal;
 		return this;
 	}
 
@@ -615,16 +1901,36 @@ public class PowerTimeLine {
 	public PowerTimeLine withTimestamp(DateTime timestamp) {
 		final DateTime oldTimestamp = this.timestamp;
 		this.timestamp = timestamp;
+		if (oldTimestamp != null && !oldTimestamp.equals(timestamp)) {
+			// Same points, only the snapshot's timestamp is moved
+			final ImmutablePowerTimeLine old = snapshot;
+			snapshot = (old == null) ? null : old.withTimestamp(timestamp);
+		}
 		if (oldTimestamp != null && !oldTimestamp.equals(timestamp)
-				&& series.size() > 0) {
-			long diff = new Duration(timestamp, oldTimestamp).getMillis();
-			for (PowerTime pt : series) {
-				pt.setOffset(pt.getOffset() + diff);
+				&& size > 0) {
+			final long diff = oldTimestamp.getMillis() - timestamp.getMillis();
+			// Shifting all offsets keeps the running integrals valid.
+			for (int i = 0; i < size; i++) {
+				offsets[i] += diff;
 			}
+			summary = null;
 		}
 		return this;
 	}
 
+	/**
+	 * With timestamp, see {@link #withTimestamp(DateTime)}. The new timestamp
+	 * keeps the time zone of the current one.
+	 *
+	 * @param time
+	 *            the timestamp, in milliseconds since the epoch
+	 * @return the power time line
+	 */
+	public PowerTimeLine withTimestamp(final long time) {
+		return withTimestamp(timestamp == null ? new DateTime(time)
+				: timestamp.withMillis(time));
+	}
+
 	@Override
 	public String toString() {
 		return JOM.getInstance().valueToTree(this).toString();
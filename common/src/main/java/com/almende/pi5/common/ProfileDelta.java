@@ -0,0 +1,378 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+/**
+ * The Class ProfileDelta.
+ * The difference between two versions of a {@link PowerProfile}, as created
+ * by {@link PowerProfile#diff(PowerProfile)}: for each category line that
+ * changed, the window in which it changed and the new values in that window.
+ * Applied to the previous version with
+ * {@link PowerProfile#applyDiff(PowerProfile, ProfileDelta)} it gives the
+ * new version. The ALL category is not part of the delta, it is calculated
+ * when applying.
+ * The sequence numbers identify the version the delta applies to and the
+ * version it results in, so a receiver can detect a missing base.
+ */
+public class ProfileDelta {
+	private long			sequence		= 0;
+	private long			baseSequence	= 0;
+	private DateTime		timestamp		= new DateTime();
+	private double			temperature;
+	private PowerTimeLine	controlMode		= null;
+	private List<Window>	windows			= new ArrayList<Window>();
+	private List<String>	removed			= new ArrayList<String>();
+
+	/**
+	 * Instantiates a new, empty, profile delta.
+	 */
+	public ProfileDelta() {}
+
+	/**
+	 * Instantiates a new, empty, profile delta.
+	 *
+	 * @param timestamp
+	 *            the timestamp of the new version
+	 */
+	public ProfileDelta(final DateTime timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * A changed window of one line of one category.
+	 */
+	public static class Window {
+		/** Until value of a window that runs to the end of the line. */
+		public static final long	UNTIL_END	= Long.MAX_VALUE;
+
+		private String				category;
+		private int					line;
+		private long				from;
+		private long				until;
+		private PowerTimeLine		series;
+
+		/**
+		 * Instantiates a new window.
+		 */
+		public Window() {}
+
+		/**
+		 * Create the window in which current differs from previous, or null
+		 * if they are the same. The series holds the values of current from
+		 * (inclusive) until (exclusive).
+		 */
+		static Window of(final Categories category, final int line,
+				final PowerTimeLine previous, final PowerTimeLine current,
+				final DateTime timestamp) {
+			final int prevSize = previous.size();
+			final int size = current.size();
+			int head = 0;
+			while (head < prevSize && head < size
+					&& previous.timeAt(head) == current.timeAt(head)
+					&& previous.valueAt(head) == current.valueAt(head)) {
+				head++;
+			}
+			if (head == prevSize && head == size) {
+				return null;
+			}
+			int tail = 0;
+			while (tail < prevSize - head
+					&& tail < size - head
+					&& previous.timeAt(prevSize - 1 - tail) == current
+							.timeAt(size - 1 - tail)
+					&& previous.valueAt(prevSize - 1 - tail) == current
+							.valueAt(size - 1 - tail)) {
+				tail++;
+			}
+			final long from;
+			if (head == prevSize) {
+				from = current.timeAt(head);
+			} else if (head == size) {
+				from = previous.timeAt(head);
+			} else {
+				from = Math.min(previous.timeAt(head), current.timeAt(head));
+			}
+			final int end = size - tail;
+
+			final long base = timestamp.getMillis();
+			final long[] offsets = new long[end - head + 1];
+			final double[] values = new double[end - head + 1];
+			int count = 0;
+			if (head == end || current.timeAt(head) != from) {
+				offsets[count] = from - base;
+				values[count++] = current.getValueAt(from);
+			}
+			for (int i = head; i < end; i++) {
+				offsets[count] = current.timeAt(i) - base;
+				values[count++] = current.valueAt(i);
+			}
+
+			final Window result = new Window();
+			result.category = category.name();
+			result.line = line;
+			result.from = from;
+			result.until = (tail == 0) ? UNTIL_END : current.timeAt(end);
+			result.series = new PowerTimeLine(timestamp, offsets, values,
+					count);
+			return result;
+		}
+
+		/**
+		 * Replace the window of the given line by the series.
+		 */
+		void applyTo(final PowerTimeLine target) {
+			if (until == UNTIL_END) {
+				target.zeroFrom(from);
+				final long base = series.getTimestamp().getMillis();
+				for (final PowerTime point : series.getSeries()) {
+					target.addValueAt(base + point.getOffset(),
+							point.getValue());
+				}
+			} else {
+				target.merge(series, from, until);
+			}
+			target.compact();
+		}
+
+		/**
+		 * Gets the category.
+		 *
+		 * @return the category
+		 */
+		public String getCategory() {
+			return category;
+		}
+
+		/**
+		 * Sets the category.
+		 *
+		 * @param category
+		 *            the new category
+		 */
+		public void setCategory(final String category) {
+			this.category = category;
+		}
+
+		/**
+		 * Gets the line: 0 for the demand, 1 for the maximum and 2 for the
+		 * minimum flexibility.
+		 *
+		 * @return the line
+		 */
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * Sets the line.
+		 *
+		 * @param line
+		 *            the new line
+		 */
+		public void setLine(final int line) {
+			if (line < CategoryProfile.DEMAND || line > CategoryProfile.MIN) {
+				throw new IllegalArgumentException("Unknown line: " + line);
+			}
+			this.line = line;
+		}
+
+		/**
+		 * Gets the start of the window, in milliseconds since the epoch.
+		 *
+		 * @return the from
+		 */
+		public long getFrom() {
+			return from;
+		}
+
+		/**
+		 * Sets the start of the window.
+		 *
+		 * @param from
+		 *            the new from
+		 */
+		public void setFrom(final long from) {
+			this.from = from;
+		}
+
+		/**
+		 * Gets the end of the window, in milliseconds since the epoch, or
+		 * {@link #UNTIL_END}.
+		 *
+		 * @return the until
+		 */
+		public long getUntil() {
+			return until;
+		}
+
+		/**
+		 * Sets the end of the window.
+		 *
+		 * @param until
+		 *            the new until
+		 */
+		public void setUntil(final long until) {
+			this.until = until;
+		}
+
+		/**
+		 * Gets the new values in the window.
+		 *
+		 * @return the series
+		 */
+		public PowerTimeLine getSeries() {
+			return series;
+		}
+
+		/**
+		 * Sets the new values in the window.
+		 *
+		 * @param series
+		 *            the new series
+		 */
+		public void setSeries(final PowerTimeLine series) {
+			this.series = series;
+		}
+	}
+
+	/**
+	 * Gets the sequence number of the resulting version.
+	 *
+	 * @return the sequence
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Sets the sequence number of the resulting version.
+	 *
+	 * @param sequence
+	 *            the new sequence
+	 */
+	public void setSequence(final long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Gets the sequence number of the version this delta applies to.
+	 *
+	 * @return the base sequence
+	 */
+	public long getBaseSequence() {
+		return baseSequence;
+	}
+
+	/**
+	 * Sets the sequence number of the version this delta applies to.
+	 *
+	 * @param baseSequence
+	 *            the new base sequence
+	 */
+	public void setBaseSequence(final long baseSequence) {
+		this.baseSequence = baseSequence;
+	}
+
+	/**
+	 * Gets the timestamp of the resulting version.
+	 *
+	 * @return the timestamp
+	 */
+	public DateTime getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Sets the timestamp.
+	 *
+	 * @param timestamp
+	 *            the new timestamp
+	 */
+	public void setTimestamp(final DateTime timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Gets the temperature of the resulting version.
+	 *
+	 * @return the temperature
+	 */
+	public double getTemperature() {
+		return temperature;
+	}
+
+	/**
+	 * Sets the temperature.
+	 *
+	 * @param temperature
+	 *            the new temperature
+	 */
+	public void setTemperature(final double temperature) {
+		this.temperature = temperature;
+	}
+
+	/**
+	 * Gets the control mode of the resulting version.
+	 *
+	 * @return the control mode
+	 */
+	public PowerTimeLine getControlMode() {
+		return controlMode;
+	}
+
+	/**
+	 * Sets the control mode.
+	 *
+	 * @param controlMode
+	 *            the new control mode
+	 */
+	public void setControlMode(final PowerTimeLine controlMode) {
+		this.controlMode = controlMode;
+	}
+
+	/**
+	 * Gets the changed windows.
+	 *
+	 * @return the windows
+	 */
+	public List<Window> getWindows() {
+		return windows;
+	}
+
+	/**
+	 * Sets the changed windows.
+	 *
+	 * @param windows
+	 *            the new windows
+	 */
+	public void setWindows(final List<Window> windows) {
+		this.windows = windows;
+	}
+
+	/**
+	 * Gets the names of the categories that are empty in the resulting
+	 * version.
+	 *
+	 * @return the removed categories
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Sets the removed categories.
+	 *
+	 * @param removed
+	 *            the new removed categories
+	 */
+	public void setRemoved(final List<String> removed) {
+		this.removed = removed;
+	}
+}
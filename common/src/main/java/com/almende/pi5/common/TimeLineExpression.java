@@ -0,0 +1,398 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+/**
+ * The Class TimeLineExpression.
+ * A lazy expression over {@link PowerTimeLine}s. Building the expression
+ * doesn't compute anything; {@link #evaluate()} computes the whole expression
+ * in a single sweep over all input timelines, allocating only the result.
+ * For example:
+ *
+ * <pre>
+ * line.expression().max(demand).window(start, end).compact().evaluate();
+ * </pre>
+ *
+ * gives the same values as
+ *
+ * <pre>
+ * line.clone().max(demand).zeroBefore(start).zeroFrom(end).compact();
+ * </pre>
+ *
+ * The inputs are read during {@link #evaluate()}, not copied while building
+ * the expression. The sweep is linear in the number of inputs per point, so
+ * for summing many timelines {@link PowerTimeLine#sum} is the better choice.
+ */
+public final class TimeLineExpression {
+	private static final int	LEAF	= 0;
+	private static final int	BINARY	= 1;
+	private static final int	WINDOW	= 2;
+	private static final int	COMPACT	= 3;
+
+	private final DateTime		timestamp;
+	private final Node			root;
+
+	private TimeLineExpression(final DateTime timestamp, final Node root) {
+		this.timestamp = timestamp;
+		this.root = root;
+	}
+
+	/**
+	 * Start an expression on the given timeline. The result gets the
+	 * timestamp of this timeline.
+	 *
+	 * @param line
+	 *            the line
+	 * @return the time line expression
+	 */
+	public static TimeLineExpression of(final PowerTimeLine line) {
+		final Node leaf = new Node(LEAF);
+		leaf.line = line;
+		return new TimeLineExpression(line.getTimestamp(), leaf);
+	}
+
+	/**
+	 * Add the other timeline, see {@link PowerTimeLine#add(PowerTimeLine)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression add(final PowerTimeLine other) {
+		return add(of(other));
+	}
+
+	/**
+	 * Add the other expression.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression add(final TimeLineExpression other) {
+		return binary(new PowerTimeLine.addition(), other);
+	}
+
+	/**
+	 * Subtract the other timeline, see {@link PowerTimeLine#minus(PowerTimeLine)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression minus(final PowerTimeLine other) {
+		return minus(of(other));
+	}
+
+	/**
+	 * Subtract the other expression.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression minus(final TimeLineExpression other) {
+		return binary(new PowerTimeLine.difference(), other);
+	}
+
+	/**
+	 * Multiply by the other timeline, see
+	 * {@link PowerTimeLine#multi(PowerTimeLine)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression multi(final PowerTimeLine other) {
+		return multi(of(other));
+	}
+
+	/**
+	 * Multiply by the other expression.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression multi(final TimeLineExpression other) {
+		return binary(new PowerTimeLine.multiply(), other);
+	}
+
+	/**
+	 * Maximum with the other timeline, see
+	 * {@link PowerTimeLine#max(PowerTimeLine)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression max(final PowerTimeLine other) {
+		return max(of(other));
+	}
+
+	/**
+	 * Maximum with the other expression.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression max(final TimeLineExpression other) {
+		return binary(new PowerTimeLine.maximum(), other);
+	}
+
+	/**
+	 * Minimum with the other timeline, see
+	 * {@link PowerTimeLine#min(PowerTimeLine)}.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression min(final PowerTimeLine other) {
+		return min(of(other));
+	}
+
+	/**
+	 * Minimum with the other expression.
+	 *
+	 * @param other
+	 *            the other
+	 * @return the time line expression
+	 */
+	public TimeLineExpression min(final TimeLineExpression other) {
+		return binary(new PowerTimeLine.minimum(), other);
+	}
+
+	/**
+	 * Clear to zero outside from (inclusive) and until (exclusive), the same
+	 * as {@link PowerTimeLine#zeroBefore(DateTime)} followed by
+	 * {@link PowerTimeLine#zeroFrom(DateTime)}.
+	 *
+	 * @param from
+	 *            the from
+	 * @param until
+	 *            the until
+	 * @return the time line expression
+	 */
+	public TimeLineExpression window(final DateTime from, final DateTime until) {
+		return window(from.getMillis(), until.getMillis());
+	}
+
+	/**
+	 * Clear to zero outside from (inclusive) and until (exclusive), the same
+	 * as {@link PowerTimeLine#zeroBefore(long)} followed by
+	 * {@link PowerTimeLine#zeroFrom(long)}.
+	 *
+	 * @param from
+	 *            the from, in milliseconds since the epoch
+	 * @param until
+	 *            the until, in milliseconds since the epoch
+	 * @return the time line expression
+	 */
+	public TimeLineExpression window(final long from, final long until) {
+		if (until < from) {
+			throw new IllegalArgumentException("Window ends ("
+					+ new DateTime(until) + ") before it starts ("
+					+ new DateTime(from) + ")");
+		}
+		final Node window = new Node(WINDOW);
+		window.left = root;
+		window.from = from;
+		window.until = until;
+		return new TimeLineExpression(timestamp, window);
+	}
+
+	/**
+	 * Drop points with the same value as the previous point, see
+	 * {@link PowerTimeLine#compact()}.
+	 *
+	 * @return the time line expression
+	 */
+	public TimeLineExpression compact() {
+		final Node compact = new Node(COMPACT);
+		compact.left = root;
+		return new TimeLineExpression(timestamp, compact);
+	}
+
+	/**
+	 * Evaluate the expression, in one sweep over all inputs.
+	 *
+	 * @return a new power time line
+	 */
+	public PowerTimeLine evaluate() {
+		// Flatten the expression, children before parents, and collect the
+		// inputs and the window boundaries.
+		final List<Node> nodes = new ArrayList<Node>();
+		final Map<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+		flatten(root, nodes, index);
+		final int count = nodes.size();
+		final int[] left = new int[count];
+		final int[] right = new int[count];
+		final boolean[] empty = new boolean[count];
+		final List<Integer> leaves = new ArrayList<Integer>();
+		final List<Long> boundaries = new ArrayList<Long>();
+		int capacity = 0;
+		for (int i = 0; i < count; i++) {
+			final Node node = nodes.get(i);
+			left[i] = node.left == null ? -1 : index.get(node.left);
+			right[i] = node.right == null ? -1 : index.get(node.right);
+			switch (node.kind) {
+				case LEAF:
+					empty[i] = node.line.size() == 0;
+					leaves.add(i);
+					capacity += node.line.size();
+					break;
+				case BINARY:
+					empty[i] = empty[left[i]] && empty[right[i]];
+					break;
+				default:
+					empty[i] = empty[left[i]];
+					if (node.kind == WINDOW && !empty[i]) {
+						boundaries.add(node.from);
+						boundaries.add(node.until);
+						capacity += 2;
+					}
+			}
+		}
+		final long[] bounds = new long[boundaries.size()];
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = boundaries.get(i);
+		}
+		Arrays.sort(bounds);
+
+		final int[] cursors = new int[count];
+		final double[] value = new double[count];
+		final boolean[] point = new boolean[count];
+		final double[] last = new double[count];
+		final boolean[] hasLast = new boolean[count];
+
+		final long base = timestamp.getMillis();
+		final long[] resOffsets = new long[capacity];
+		final double[] resValues = new double[capacity];
+		int size = 0;
+		int bound = 0;
+		final int top = count - 1;
+		while (true) {
+			// The next time at which any input or window boundary changes
+			long time = Long.MAX_VALUE;
+			boolean done = true;
+			for (final int leaf : leaves) {
+				final PowerTimeLine line = nodes.get(leaf).line;
+				if (cursors[leaf] < line.size()) {
+					time = Math.min(time, line.timeAt(cursors[leaf]));
+					done = false;
+				}
+			}
+			if (bound < bounds.length) {
+				time = Math.min(time, bounds[bound]);
+				done = false;
+			}
+			if (done) {
+				break;
+			}
+			while (bound < bounds.length && bounds[bound] <= time) {
+				bound++;
+			}
+
+			for (int i = 0; i < count; i++) {
+				final Node node = nodes.get(i);
+				if (empty[i]) {
+					value[i] = 0;
+					point[i] = false;
+					continue;
+				}
+				final int l = left[i];
+				switch (node.kind) {
+					case LEAF:
+						point[i] = false;
+						final PowerTimeLine line = node.line;
+						while (cursors[i] < line.size()
+								&& line.timeAt(cursors[i]) <= time) {
+							point[i] |= line.timeAt(cursors[i]) == time;
+							value[i] = line.valueAt(cursors[i]++);
+						}
+						break;
+					case BINARY:
+						if (empty[right[i]]) {
+							value[i] = value[l];
+							point[i] = point[l];
+						} else {
+							value[i] = node.op.doOp(value[l], value[right[i]]);
+							point[i] = point[l] || point[right[i]];
+						}
+						break;
+					case WINDOW:
+						final boolean inside = node.from <= time
+								&& time < node.until;
+						value[i] = inside ? value[l] : 0;
+						point[i] = time == node.from || time == node.until
+								|| (inside && point[l]);
+						break;
+					case COMPACT:
+						value[i] = value[l];
+						point[i] = point[l]
+								&& (!hasLast[i] || value[l] != last[i]);
+						if (point[i]) {
+							last[i] = value[i];
+							hasLast[i] = true;
+						}
+						break;
+				}
+			}
+			if (point[top]) {
+				resOffsets[size] = time - base;
+				resValues[size++] = value[top];
+			}
+		}
+		return new PowerTimeLine(timestamp, resOffsets, resValues, size);
+	}
+
+	private TimeLineExpression binary(final PowerTimeLine.operator op,
+			final TimeLineExpression other) {
+		final Node node = new Node(BINARY);
+		node.op = op;
+		node.left = root;
+		node.right = other.root;
+		return new TimeLineExpression(timestamp, node);
+	}
+
+	private static void flatten(final Node node, final List<Node> nodes,
+			final Map<Node, Integer> index) {
+		if (node == null || index.containsKey(node)) {
+			return;
+		}
+		flatten(node.left, nodes, index);
+		flatten(node.right, nodes, index);
+		index.put(node, nodes.size());
+		nodes.add(node);
+	}
+
+	/**
+	 * A node of the expression; not changed once it is built, so
+	 * expressions can share nodes.
+	 */
+	private static final class Node {
+		private final int				kind;
+		private PowerTimeLine			line;
+		private PowerTimeLine.operator	op;
+		private Node					left;
+		private Node					right;
+		private long					from;
+		private long					until;
+
+		private Node(final int kind) {
+			this.kind = kind;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -31,6 +32,7 @@ import com.almende.pi5.common.ControlMode;
 import com.almende.pi5.common.LogLine;
 import com.almende.pi5.common.PowerProfile;
 import com.almende.pi5.common.PowerTimeLine;
+import com.almende.pi5.common.ProfileDelta;
 import com.almende.pi5.common.RequestProfile;
 import com.almende.util.URIUtil;
 import com.almende.util.jackson.JOM;
@@ -45,6 +47,9 @@ public abstract class AggregatingAgent extends GraphAgent {
 	private static final Logger				LOG				= Logger.getLogger(AggregatingAgent.class
 																	.getName());
 
+	/* Shared by all aggregating agents, for summing their reports */
+	private static final ForkJoinPool		AGGREGATION		= new ForkJoinPool();
+
 	private Set<ReportWrap>					reports			= new HashSet<ReportWrap>();
 	private final ReentrantReadWriteLock	reportsLock		= new ReentrantReadWriteLock();
 	private final ReentrantLock				steeringLock	= new ReentrantLock();
@@ -54,13 +59,19 @@ public abstract class AggregatingAgent extends GraphAgent {
 		private String			owner			= null;
 
 		private PowerProfile	report			= null;
+		/* The report as received, the base for the next delta */
+		private PowerProfile	base			= null;
+		private long			sequence		= 0;
 		private DateTime		lastAccessed	= null;
 
 		public ReportWrap() {}
 
-		public ReportWrap(final String owner, final PowerProfile report) {
+		public ReportWrap(final String owner, final PowerProfile report,
+				final long sequence) {
 			this.owner = owner;
 			this.setReport(report);
+			this.base = report;
+			this.sequence = sequence;
 			lastAccessed = DateTime.now();
 		}
 
@@ -111,6 +122,15 @@ public abstract class AggregatingAgent extends GraphAgent {
 		public void setReport(PowerProfile report) {
 			this.report = report;
 		}
+
+		@JsonIgnore
+		public PowerProfile getBase() {
+			return base;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
 	}
 
 	/**
@@ -148,7 +168,7 @@ public abstract class AggregatingAgent extends GraphAgent {
 	@JsonIgnore
 	@Access(AccessType.PUBLIC)
 	public CategoryProfile getCurrentProfile() {
-		return generateReport().getCategoryProfile(Categories.ALL.name());
+		return generateReport().getCategoryProfile(Categories.ALL);
 	}
 	
 	/**
@@ -167,31 +187,19 @@ public abstract class AggregatingAgent extends GraphAgent {
 			return null;
 		}
 
+		final List<PowerProfile> children = new ArrayList<PowerProfile>(
+				reports.size());
 		reportsLock.readLock().lock();
-		final PowerProfile profile = new PowerProfile(currentTimeslot);
 		for (final ReportWrap wrap : reports) {
-			final PowerProfile report = wrap.getReportPeek();
-			for (Categories cat : Categories.values()) {
-				final String category = cat.name();
-				if (category.equals(Categories.ALL.name())) {
-					continue;
-				}
-				profile.getCategoryProfile(category).getDemand()
-						.add(report.getCategoryProfile(category).getDemand())
-						.compact();
-				profile.getCategoryProfile(category)
-						.getExpectedFlexibilityMaxInWatts()
-						.add(report.getCategoryProfile(category)
-								.getExpectedFlexibilityMaxInWatts()).compact();
-				profile.getCategoryProfile(category)
-						.getExpectedFlexibilityMinInWatts()
-						.add(report.getCategoryProfile(category)
-								.getExpectedFlexibilityMinInWatts()).compact();
-			}
+			children.add(wrap.getReportPeek());
 		}
 		reportsLock.readLock().unlock();
-		profile.calcAll();
-		return profile;
+
+		// Stored reports are not changed (ALL is calculated before they are
+		// stored), so they can be summed outside the lock. Timeslot aligned
+		// reports are summed as dense grids.
+		return PowerProfile.sumAll(currentTimeslot, children, TIMESLOTLENGTH,
+				AGGREGATION);
 	}
 
 	/**
@@ -217,6 +225,8 @@ public abstract class AggregatingAgent extends GraphAgent {
 	 *
 	 * @param profile
 	 *            the profile to cache
+	 * @param sequence
+	 *            the sequence number of the profile, for later deltas
 	 * @param senderUrl
 	 *            the profile's sender url
 	 * @throws JsonProcessingException
@@ -224,17 +234,63 @@ public abstract class AggregatingAgent extends GraphAgent {
 	 */
 	@Access(AccessType.PUBLIC)
 	public void report(final @Name("profile") PowerProfile profile,
+			final @Optional @Name("sequence") Long sequence,
 			final @Sender URI senderUrl) throws JsonProcessingException {
 		LOG.fine(getId() + "Receiving report from: " + senderUrl + " : "
 				+ JOM.getInstance().valueToTree(profile).toString());
+		// Stored reports are never changed, so calculate ALL before storing
+		profile.calcAll();
+		reportsLock.writeLock().lock();
+		final ReportWrap wrap = new ReportWrap(senderUrl.toString(), profile,
+				sequence == null ? 0 : sequence);
+		this.reports.remove(wrap);
+		this.reports.add(wrap);
+		reportsLock.writeLock().unlock();
+
+		steer();
+		sendLog();
+	}
+
+	/**
+	 * Called by downstream agents instead of {@link #report}, with the
+	 * changes since their previous report. If the previous report is missing
+	 * or has another sequence number, the delta is not applied and the
+	 * sender should send a full report.
+	 *
+	 * @param delta
+	 *            the delta from the previous report
+	 * @param senderUrl
+	 *            the delta's sender url
+	 * @return true if the delta was applied
+	 */
+	@Access(AccessType.PUBLIC)
+	public boolean reportDelta(final @Name("delta") ProfileDelta delta,
+			final @Sender URI senderUrl) {
+		final String owner = senderUrl.toString();
 		reportsLock.writeLock().lock();
-		final ReportWrap wrap = new ReportWrap(senderUrl.toString(), profile);
+		ReportWrap previous = null;
+		for (final ReportWrap wrap : reports) {
+			if (wrap.getOwner().equals(owner)) {
+				previous = wrap;
+				break;
+			}
+		}
+		if (previous == null
+				|| previous.getSequence() != delta.getBaseSequence()) {
+			reportsLock.writeLock().unlock();
+			LOG.info(getId() + ": Missing base " + delta.getBaseSequence()
+					+ " of report delta from: " + senderUrl);
+			return false;
+		}
+		final ReportWrap wrap = new ReportWrap(owner, PowerProfile.applyDiff(
+				previous.getBase(), delta), delta.getSequence());
 		this.reports.remove(wrap);
 		this.reports.add(wrap);
 		reportsLock.writeLock().unlock();
 
 		steer();
 		sendLog();
+		return true;
 	}
 
 	@Access(AccessType.PUBLIC)
@@ -275,11 +331,12 @@ public abstract class AggregatingAgent extends GraphAgent {
 		}
 
 		final PowerProfile aggregate = generateReport();
+		final long nowMillis = now.getMillis();
+		final long slot = currentTimeslot.getMillis();
 
-		Double current_diff = getDiff(currentTimeslot.minus(TIMESLOTLENGTH),
-				currentTimeslot, now, aggregate);
-		Double next_diff = getDiff(currentTimeslot,
-				currentTimeslot.plus(TIMESLOTLENGTH), currentTimeslot,
+		Double current_diff = getDiff(slot - TIMESLOTLENGTH, slot, nowMillis,
+				aggregate);
+		Double next_diff = getDiff(slot, slot + TIMESLOTLENGTH, slot,
 				aggregate);
 
 		if (current_diff.isNaN()) {
@@ -298,10 +355,24 @@ public abstract class AggregatingAgent extends GraphAgent {
 			return;
 		}
 
+		final CategoryProfile all = aggregate
+				.getCategoryProfile(Categories.ALL);
+		if (Math.abs(current_diff) >= steerlimit
+				&& Math.abs(next_diff) >= steerlimit
+				&& !canSteer(current_diff, all) && !canSteer(next_diff, all)) {
+			LOG.warning(getId() + ": No flexibility to reach steering goal ("
+					+ current_diff + " - " + next_diff
+					+ "), resetting goal and reporting max.");
+			updateCurrentReport(false);
+			sendReport();
+			steeringLock.unlock();
+			return;
+		}
+
 		// Current timeslot:
 		double current_percentage;
 		if (current_diff > 0) {
-			current_percentage = (current_diff / getFlexUp(now, aggregate)) * 2;
+			current_percentage = (current_diff / getFlexUp(nowMillis, aggregate)) * 2;
 			LOG.log(Level.INFO, getId()
 					+ ": request: Currently more power usage needed:"
 					+ current_diff + " Watt (" + (current_percentage * 100)
@@ -310,7 +381,7 @@ public abstract class AggregatingAgent extends GraphAgent {
 		} else if (current_diff == 0) {
 			current_percentage = 0;
 		} else {
-			current_percentage = (current_diff / getFlexDown(now, aggregate)) * 2;
+			current_percentage = (current_diff / getFlexDown(nowMillis, aggregate)) * 2;
 			LOG.log(Level.INFO, getId()
 					+ ": request: Currently less power usage needed:"
 					+ (-current_diff) + " Watt (" + (current_percentage * 100)
@@ -327,7 +398,7 @@ public abstract class AggregatingAgent extends GraphAgent {
 		// Next timeslot:
 		double next_percentage;
 		if (next_diff > 0) {
-			next_percentage = (next_diff / getFlexUp(currentTimeslot, aggregate)) * 2;
+			next_percentage = (next_diff / getFlexUp(slot, aggregate)) * 2;
 			LOG.log(Level.INFO, getId()
 					+ ": request: Next timeslot more power usage needed:"
 					+ next_diff + " Watt (" + (next_percentage * 100) + "%):"
@@ -335,8 +406,7 @@ public abstract class AggregatingAgent extends GraphAgent {
 		} else if (next_diff == 0) {
 			next_percentage = 0;
 		} else {
-			next_percentage = (next_diff / getFlexDown(currentTimeslot,
-					aggregate)) * 2;
+			next_percentage = (next_diff / getFlexDown(slot, aggregate)) * 2;
 			LOG.log(Level.INFO,
 					getId()
 							+ ": request: Next timeslot less power usage needed:"
@@ -369,49 +439,47 @@ public abstract class AggregatingAgent extends GraphAgent {
 
 			String agentUrl = wrap.getOwner();
 			PowerProfile report = wrap.getReport();
-			report.calcAll();
 
 			// Timeline based:
-			PowerTimeLine diffLine = new PowerTimeLine(
-					currentReport.getTimestamp());
+			PowerTimeLine diffLine = new PowerTimeLine(currentReport.get()
+					.getTimestamp());
 
-			CategoryProfile rep = report.getCategoryProfile(Categories.ALL
-					.name());
+			CategoryProfile rep = report.getCategoryProfile(Categories.ALL);
 			double influence = 0;
 			if (Math.abs(current_diff) >= 0) {
 				if (current_diff > 0) {
 					final double val = Math.min(current_diff,
-							getFlexUp(now, report) * current_percentage);
+							getFlexUp(nowMillis, report) * current_percentage);
 					current_diff -= val;
-					diffLine.addValueAt(now, val);
+					diffLine.addValueAt(nowMillis, val);
 					influence += val;
 				} else {
 					final double val = Math.max(current_diff,
-							getFlexDown(now, report) * current_percentage);
+							getFlexDown(nowMillis, report) * current_percentage);
 					current_diff -= val;
-					diffLine.addValueAt(now, val);
+					diffLine.addValueAt(nowMillis, val);
 					influence -= val;
 				}
 			}
-			diffLine.zeroFrom(currentTimeslot);
+			diffLine.zeroFrom(slot);
 			if (Math.abs(next_diff) >= 0) {
 				if (next_diff > 0) {
 					final double val = Math.min(next_diff,
-							getFlexUp(currentTimeslot, report)
+							getFlexUp(slot, report)
 									* next_percentage);
 					next_diff -= val;
-					diffLine.addValueAt(currentTimeslot, val);
+					diffLine.addValueAt(slot, val);
 					influence += val;
 				} else {
 					final double val = Math.max(next_diff,
-							getFlexDown(currentTimeslot, report)
+							getFlexDown(slot, report)
 									* next_percentage);
 					next_diff -= val;
-					diffLine.addValueAt(currentTimeslot, val);
+					diffLine.addValueAt(slot, val);
 					influence -= val;
 				}
 			}
-			diffLine.zeroFrom(currentTimeslot.plus(TIMESLOTLENGTH));
+			diffLine.zeroFrom(slot + TIMESLOTLENGTH);
 
 			if (influence <= 0) {
 				LOG.warning(getId()
@@ -425,8 +493,10 @@ public abstract class AggregatingAgent extends GraphAgent {
 					+ JOM.getInstance().valueToTree(rep.getDemand()));
 
 			RequestProfile subRequest = new RequestProfile();
-			subRequest.setTimestamp(currentReport.getTimestamp());
-			subRequest.getRequest().add(rep.getDemand()).add(diffLine);
+			subRequest.setTimestamp(currentReport.get().getTimestamp());
+			// diffLine is zero outside the current and the next timeslot
+			subRequest.getRequest().add(rep.getDemand())
+					.add(diffLine, slot - TIMESLOTLENGTH, slot + TIMESLOTLENGTH);
 
 			ObjectNode params = JOM.createObjectNode();
 			params.set("request", JOM.getInstance().valueToTree(subRequest));
@@ -434,12 +504,13 @@ public abstract class AggregatingAgent extends GraphAgent {
 				LOG.info(getId() + ": Sending request to Child:" + agentUrl
 						+ " -> " + params);
 
+				// The received report stays unchanged, as base for deltas
 				reportsLock.writeLock().lock();
-				wrap.getReport()
+				wrap.setReport(report
+						.clone()
 						.merge(createProposal(report, subRequest),
-								currentTimeslot.minus(TIMESLOTLENGTH),
-								currentTimeslot.plus(TIMESLOTLENGTH))
-						.dropHistory(currentTimeslot.minus(TIMESLOTLENGTH));
+								slot - TIMESLOTLENGTH, slot + TIMESLOTLENGTH)
+						.dropHistory(slot - TIMESLOTLENGTH));
 				reportsLock.writeLock().unlock();
 				getSender().get().call(URI.create(agentUrl), "request", params);
 			} catch (IOException e) {
@@ -457,6 +528,21 @@ public abstract class AggregatingAgent extends GraphAgent {
 		steeringLock.unlock();
 	}
 
+	/**
+	 * Check if the children could possibly steer the given difference, from
+	 * the summaries of the aggregate: without any point where the maximum is
+	 * above (or the minimum below) the demand, there is no flexibility at all.
+	 */
+	private boolean canSteer(final double diff, final CategoryProfile all) {
+		final PowerTimeLine.Summary demand = all.getDemand().getSummary();
+		if (diff > 0) {
+			return all.getExpectedFlexibilityMaxInWatts().getSummary()
+					.getMax() > demand.getMin();
+		}
+		return all.getExpectedFlexibilityMinInWatts().getSummary().getMin() < demand
+				.getMax();
+	}
+
 	/**
 	 * Describe status.
 	 *
@@ -467,6 +553,8 @@ public abstract class AggregatingAgent extends GraphAgent {
 	public String describe() {
 		final StringBuilder sb = new StringBuilder();
 		final PowerProfile aggregate = generateReport();
+		final PowerTimeLine demand = aggregate.getCategoryProfile(
+				Categories.ALL).getDemand();
 		final DateTime now = DateTime.now();
 		sb.append(getId());
 		sb.append(" ");
@@ -477,14 +565,10 @@ public abstract class AggregatingAgent extends GraphAgent {
 		sb.append(getModus());
 		sb.append('\n');
 		sb.append("T0 c:");
-		sb.append(aggregate.getCategoryProfile(Categories.ALL.name())
-				.getDemand().getValueAt(now));
+		sb.append(demand.getValueAt(now));
 		sb.append(" a:");
-		sb.append(aggregate
-				.getCategoryProfile(Categories.ALL.name())
-				.getDemand()
-				.getIntegral(currentTimeslot.minus(TIMESLOTLENGTH),
-						currentTimeslot)
+		sb.append(demand.getIntegral(currentTimeslot.getMillis()
+				- TIMESLOTLENGTH, currentTimeslot.getMillis())
 				/ (TIMESLOTLENGTH / 1000));
 		sb.append(" g:");
 		sb.append(getGoal(now));
@@ -494,14 +578,10 @@ public abstract class AggregatingAgent extends GraphAgent {
 		sb.append(")");
 		sb.append('\n');
 		sb.append("T1 c:");
-		sb.append(aggregate.getCategoryProfile(Categories.ALL.name())
-				.getDemand().getValueAt(currentTimeslot));
+		sb.append(demand.getValueAt(currentTimeslot));
 		sb.append(" a:");
-		sb.append(aggregate
-				.getCategoryProfile(Categories.ALL.name())
-				.getDemand()
-				.getIntegral(currentTimeslot,
-						currentTimeslot.plus(TIMESLOTLENGTH))
+		sb.append(demand.getIntegral(currentTimeslot.getMillis(),
+				currentTimeslot.getMillis() + TIMESLOTLENGTH)
 				/ (TIMESLOTLENGTH / 1000));
 		sb.append(" g:");
 		sb.append(getGoal(currentTimeslot));
@@ -527,14 +607,7 @@ public abstract class AggregatingAgent extends GraphAgent {
 		if (now.isAfter(currentTimeslot)) {
 			updateTime();
 		}
-		final CategoryProfile current = generateReport().getCategoryProfile(
-				Categories.ALL.name());
-		CategoryProfile expected = current;
-		if (getModus().equals(ControlMode.CONTRACT)) {
-			expected = currentReport.getCategoryProfile(Categories.ALL.name());
-		}
-		final LogLine ll = LogLine.fromProfiles(getId(), current, expected,
-				now, currentTimeslot, getModus().equals(ControlMode.CONTRACT));
+		final LogLine ll = toLogLine(generateReport(), now);
 		final Params params = new Params();
 		params.add("logline", ll);
 		try {
@@ -554,16 +627,24 @@ public abstract class AggregatingAgent extends GraphAgent {
 	@JsonIgnore
 	@Access(AccessType.PUBLIC)
 	public String getLogLine(final PowerProfile aggregate) {
-		final DateTime now = DateTime.now();
+		return toLogLine(aggregate, DateTime.now()).getCsv();
+	}
+
+	/**
+	 * The log line of the aggregate, and of the published report in contract
+	 * mode. The aggregate is freshly generated and the published report is
+	 * never changed once stored, so both are read in place.
+	 */
+	private LogLine toLogLine(final PowerProfile aggregate,
+			final DateTime now) {
+		final boolean contract = getModus().equals(ControlMode.CONTRACT);
 		final CategoryProfile current = aggregate
-				.getCategoryProfile(Categories.ALL.name());
-		CategoryProfile expected = current;
-		if (getModus().equals(ControlMode.CONTRACT)) {
-			expected = currentReport.getCategoryProfile(Categories.ALL.name());
-		}
-		final LogLine ll = LogLine.fromProfiles(getId(), current, expected,
-				now, currentTimeslot, getModus().equals(ControlMode.CONTRACT));
-		return ll.getCsv();
+				.getCategoryProfile(Categories.ALL);
+		final CategoryProfile expected = contract ? currentReport.get()
+				.getCategoryProfile(Categories.ALL) : current;
+		return LogLine.fromProfiles(getId(), current, expected,
+				now.getMillis(), currentTimeslot.getMillis(), TIMESLOTLENGTH,
+				contract);
 	}
 
 	/**
@@ -4,13 +4,14 @@
  */
 package com.almende.pi5.common.agents;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
-import org.joda.time.Duration;
 
 import com.almende.eve.agent.Agent;
 import com.almende.eve.protocol.jsonrpc.annotation.Access;
@@ -23,6 +24,7 @@ import com.almende.pi5.common.CategoryProfile;
 import com.almende.pi5.common.ControlMode;
 import com.almende.pi5.common.PowerProfile;
 import com.almende.pi5.common.PowerTimeLine;
+import com.almende.pi5.common.ProfileDelta;
 import com.almende.pi5.common.RequestProfile;
 import com.almende.util.callback.AsyncCallback;
 import com.almende.util.jackson.JOM;
@@ -41,9 +43,25 @@ public abstract class GraphAgent extends Agent {
 																		.now();
 	private int						sendOffset					= 0;
 	protected int					sendInterval				= 0;
+	/* Lossy compaction of sent reports, in Watt and Joule; 0 is lossless */
+	private double					reportTolerance				= 0;
+	private double					reportEnergyTolerance		= 0;
+	/*
+	 * Send deltas against the last sent report instead of full reports; the
+	 * parent must support reportDelta
+	 */
+	private boolean					deltaReports				= false;
+	private PowerProfile			sentReport					= null;
+	private long					sentSequence				= 0;
+	private final ReentrantLock		sentLock					= new ReentrantLock();
 
-	protected PowerProfile			currentReport				= null;
-	protected final ReentrantLock	currentRepLock				= new ReentrantLock();
+	/*
+	 * The current report, as a snapshot that is never changed once set:
+	 * writers build a new version and swap it in, readers take one snapshot.
+	 * Subclasses read it with get() and must not change the profile they get;
+	 * they publish a new one with compareAndSet() (or set()).
+	 */
+	protected final AtomicReference<PowerProfile>	currentReport	= new AtomicReference<PowerProfile>();
 
 	protected static ControlMode	DEFAULT_MODE				= ControlMode.NOMINAL;
 
@@ -58,6 +76,10 @@ public abstract class GraphAgent extends Agent {
 
 	private static final String		SEND_INTERVAL_KEY			= "sendInterval";
 
+	private static final String		REPORT_TOLERANCE_KEY		= "reportTolerance";
+	private static final String		REPORT_ENERGY_TOLERANCE_KEY	= "reportEnergyTolerance";
+	private static final String		DELTA_REPORTS_KEY			= "deltaReports";
+
 	protected static final int		TIMESTEP					= 15;
 	protected static final int		TIMESLOTLENGTH				= 15 * 60 * 1000;
 	private static final int		SEND_INTERVAL_DEFAULT		= TIMESLOTLENGTH;
@@ -101,6 +123,15 @@ public abstract class GraphAgent extends Agent {
 				SEND_OFFSET_KEY).asInt(SEND_OFFSET_DEFAULT) : 0;
 		this.sendInterval = config.hasNonNull(SEND_INTERVAL_KEY) ? config.get(
 				SEND_INTERVAL_KEY).asInt(SEND_INTERVAL_DEFAULT) : 0;
+		this.reportTolerance = config.hasNonNull(REPORT_TOLERANCE_KEY) ? config
+				.get(REPORT_TOLERANCE_KEY).asDouble(0) : 0;
+		// By default, a deviation of reportTolerance during one timeslot
+		this.reportEnergyTolerance = config
+				.hasNonNull(REPORT_ENERGY_TOLERANCE_KEY) ? config.get(
+				REPORT_ENERGY_TOLERANCE_KEY).asDouble(0) : reportTolerance
+				* TIMESLOTLENGTH / 1000;
+		this.deltaReports = config.hasNonNull(DELTA_REPORTS_KEY) ? config.get(
+				DELTA_REPORTS_KEY).asBoolean(false) : false;
 
 		repeatUpdateTime();
 		repeatSendReportOn15();
@@ -184,20 +215,35 @@ public abstract class GraphAgent extends Agent {
 	@Access(AccessType.PUBLIC)
 	public void updateCurrentReport(final boolean contract) {
 		final PowerProfile aggregate = generateReport();
-		currentRepLock.lock();
-		if (currentReport == null) {
-			currentReport = aggregate;
-		} else {
-			final PowerProfile newReport = new PowerProfile(currentTimeslot);
-			for (Categories cat : Categories.values()) {
-				final String category = cat.name();
-				if (category.equals(Categories.ALL.name())) {
-					continue;
-				}
-				final CategoryProfile oldCat = aggregate
-						.getCategoryProfile(category);
-				final CategoryProfile newCat = newReport
-						.getCategoryProfile(category);
+		PowerProfile current;
+		PowerProfile next;
+		do {
+			current = currentReport.get();
+			next = (current == null) ? aggregate : nextReport(aggregate,
+					current, contract);
+			next.calcAll();
+		} while (!currentReport.compareAndSet(current, next));
+	}
+
+	/**
+	 * Build the next version of the current report from the aggregate. The
+	 * current report is not changed.
+	 */
+	private PowerProfile nextReport(final PowerProfile aggregate,
+			final PowerProfile current, final boolean contract) {
+		final PowerProfile newReport = new PowerProfile(currentTimeslot);
+		for (Categories cat : Categories.values()) {
+			if (cat == Categories.ALL) {
+				continue;
+			}
+			final CategoryProfile oldCat = aggregate.peekCategoryProfile(cat);
+			final CategoryProfile contracted = contract ? current
+					.peekCategoryProfile(cat) : null;
+			if (oldCat == null && contracted == null) {
+				continue;
+			}
+			final CategoryProfile newCat = newReport.getCategoryProfile(cat);
+			if (oldCat != null) {
 				newCat.setExpectedFlexibilityMaxInWatts(oldCat
 						.getExpectedFlexibilityMaxInWatts().clone()
 						.withTimestamp(currentTimeslot));
@@ -207,16 +253,14 @@ public abstract class GraphAgent extends Agent {
 				if (!contract) {
 					newCat.setDemand(oldCat.getDemand().clone()
 							.withTimestamp(currentTimeslot));
-				} else {
-					newCat.setDemand(currentReport.getCategoryProfile(category)
-							.getDemand().clone().withTimestamp(currentTimeslot));
 				}
 			}
-			newReport.calcAll();
-			currentReport = newReport;
+			if (contracted != null) {
+				newCat.setDemand(contracted.getDemand().clone()
+						.withTimestamp(currentTimeslot));
+			}
 		}
-		// currentReport.calcAll();
-		currentRepLock.unlock();
+		return newReport;
 	}
 
 	/**
@@ -232,27 +276,24 @@ public abstract class GraphAgent extends Agent {
 		}
 		try {
 			updateCurrentReport(modus.equals(ControlMode.CONTRACT));
-			final Params params = new Params();
-			params.set("profile", JOM.getInstance().valueToTree(currentReport));
-			getSender().get().call(this.myParentUrl, "report", params,
-					new AsyncCallback<Void>() {
-
-						@Override
-						public void onSuccess(Void result) {
-							LOG.info(getId() + ": Reported " + getId()
-									+ " flex to: " + myParentUrl + " : "
-									+ params);
-						}
-
-						@Override
-						public void onFailure(Exception exception) {
-							LOG.log(Level.WARNING, getId()
-									+ ": Failed to report flex to:"
-									+ myParentUrl, exception);
-						}
-
-					});
-
+			final PowerProfile current = currentReport.get();
+			final PowerProfile report = reportTolerance > 0
+					|| reportEnergyTolerance > 0 ? current.compacted(
+					reportTolerance, reportEnergyTolerance, TIMESLOTLENGTH)
+					: current;
+
+			sentLock.lock();
+			final PowerProfile previous = deltaReports ? sentReport : null;
+			final long baseSequence = sentSequence;
+			final long sequence = ++sentSequence;
+			sentReport = report;
+			sentLock.unlock();
+
+			if (previous == null) {
+				sendFullReport(report, sequence);
+			} else {
+				sendDeltaReport(report.diff(previous), baseSequence, sequence);
+			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, getId()
 					+ ": Failed to report flexibility to parent: "
@@ -260,6 +301,80 @@ public abstract class GraphAgent extends Agent {
 		}
 	}
 
+	private void sendFullReport(final PowerProfile report, final long sequence)
+			throws IOException {
+		final Params params = new Params();
+		params.set("profile", JOM.getInstance().valueToTree(report));
+		if (deltaReports) {
+			params.add("sequence", sequence);
+		}
+		getSender().get().call(this.myParentUrl, "report", params,
+				new AsyncCallback<Void>() {
+
+					@Override
+					public void onSuccess(Void result) {
+						LOG.info(getId() + ": Reported " + getId()
+								+ " flex to: " + myParentUrl + " : " + params);
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						LOG.log(Level.WARNING, getId()
+								+ ": Failed to report flex to:" + myParentUrl,
+								exception);
+						forgetSentReport();
+					}
+
+				});
+	}
+
+	private void sendDeltaReport(final ProfileDelta delta,
+			final long baseSequence, final long sequence) throws IOException {
+		delta.setBaseSequence(baseSequence);
+		delta.setSequence(sequence);
+		final Params params = new Params();
+		params.set("delta", JOM.getInstance().valueToTree(delta));
+		getSender().get().call(this.myParentUrl, "reportDelta", params,
+				new AsyncCallback<Boolean>() {
+
+					@Override
+					public void onSuccess(Boolean applied) {
+						if (Boolean.TRUE.equals(applied)) {
+							LOG.info(getId() + ": Reported " + getId()
+									+ " flex delta to: " + myParentUrl + " : "
+									+ params);
+						} else {
+							// The parent is missing the base, resync in full
+							LOG.info(getId() + ": " + myParentUrl
+									+ " couldn't apply report delta "
+									+ sequence + ", sending full report");
+							forgetSentReport();
+							sendReport();
+						}
+					}
+
+					@Override
+					public void onFailure(Exception exception) {
+						LOG.log(Level.WARNING, getId()
+								+ ": Failed to report flex delta to:"
+								+ myParentUrl + ", sending full report",
+								exception);
+						forgetSentReport();
+						sendReport();
+					}
+
+				});
+	}
+
+	/**
+	 * Make the next report a full report.
+	 */
+	private void forgetSentReport() {
+		sentLock.lock();
+		sentReport = null;
+		sentLock.unlock();
+	}
+
 	/**
 	 * Called periodically by {@link #sendReport()} for upstream aggregation.
 	 *
@@ -283,29 +398,18 @@ public abstract class GraphAgent extends Agent {
 			final @Name("request") RequestProfile request) {
 
 		final PowerProfile result = new PowerProfile(request.getTimestamp());
-		final PowerTimeLine pt = request.getRequest().clone()
-				.zeroBefore(currentTimeslot.minus(TIMESLOTLENGTH))
-				.zeroFrom(currentTimeslot.plus(TIMESLOTLENGTH));
-		if (pt.getValueAt(currentTimeslot.minus(TIMESLOTLENGTH)) == 0) {
-			pt.merge(report.getCategoryProfile(Categories.ALL.name())
-					.getDemand(), currentTimeslot.minus(TIMESLOTLENGTH),
-					currentTimeslot);
+		final long slot = currentTimeslot.getMillis();
+		final long windowStart = slot - TIMESLOTLENGTH;
+		final long windowEnd = slot + TIMESLOTLENGTH;
+		final PowerTimeLine pt = request.getRequest().expression()
+				.window(windowStart, windowEnd).evaluate();
+		if (pt.getValueAt(windowStart) == 0) {
+			pt.merge(report.getCategoryProfile(Categories.ALL)
+					.getDemand(), windowStart, slot);
 		}
-		final CategoryProfile cat = result
-				.getCategoryProfile(Categories.SIMULATED.name());
-		cat.setDemand(pt.compact());
-		cat.setExpectedFlexibilityMaxInWatts(report
-				.getCategoryProfile(Categories.ALL.name())
-				.getExpectedFlexibilityMaxInWatts().clone()
-				.max(cat.getDemand())
-				.zeroBefore(currentTimeslot.minus(TIMESLOTLENGTH))
-				.zeroFrom(currentTimeslot.plus(TIMESLOTLENGTH)).compact());
-		cat.setExpectedFlexibilityMinInWatts(report
-				.getCategoryProfile(Categories.ALL.name())
-				.getExpectedFlexibilityMinInWatts().clone()
-				.min(cat.getDemand())
-				.zeroBefore(currentTimeslot.minus(TIMESLOTLENGTH))
-				.zeroFrom(currentTimeslot.plus(TIMESLOTLENGTH)).compact());
+		result.setCategoryReport(Categories.SIMULATED, report
+				.getCategoryProfile(Categories.ALL).clampProposal(pt,
+						windowStart, windowEnd));
 		result.calcAll();
 		try {
 			LOG.info(getId() + ": Creating proposal for request:"
@@ -336,15 +440,18 @@ public abstract class GraphAgent extends Agent {
 			sendReport();
 			return;
 		}
-		currentRepLock.lock();
-		if (currentReport == null) {
-			currentReport = generateReport();
-		}
-		currentReport.merge(createProposal(currentReport, request),
-				currentTimeslot.minus(TIMESLOTLENGTH),
-				currentTimeslot.plus(TIMESLOTLENGTH)).dropHistory(
-				currentTimeslot.minus(TIMESLOTLENGTH));
-		currentRepLock.unlock();
+		final long slot = currentTimeslot.getMillis();
+		PowerProfile current = currentReport.get();
+		// The proposal is made once, a retry only merges it again
+		final PowerProfile proposal = createProposal(
+				(current == null) ? generateReport() : current, request);
+		PowerProfile next;
+		do {
+			current = currentReport.get();
+			next = (current == null) ? generateReport() : current.clone();
+			next.merge(proposal, slot - TIMESLOTLENGTH, slot + TIMESLOTLENGTH)
+					.dropHistory(slot - TIMESLOTLENGTH);
+		} while (!currentReport.compareAndSet(current, next));
 		setModus(ControlMode.CONTRACT);
 	}
 
@@ -363,20 +470,37 @@ public abstract class GraphAgent extends Agent {
 	 */
 	public Double getDiff(final DateTime start, final DateTime end,
 			final DateTime now, final PowerProfile aggregate) {
-		if (currentReport == null) {
+		return getDiff(start.getMillis(), end.getMillis(), now.getMillis(),
+				aggregate);
+	}
+
+	/**
+	 * Do compare.
+	 *
+	 * @param start
+	 *            the start, in milliseconds since the epoch
+	 * @param end
+	 *            the end, in milliseconds since the epoch
+	 * @param now
+	 *            the now, in milliseconds since the epoch
+	 * @param aggregate
+	 *            the aggregate
+	 * @return the diff
+	 */
+	public Double getDiff(final long start, final long end, final long now,
+			final PowerProfile aggregate) {
+		final PowerProfile report = currentReport.get();
+		if (report == null) {
 			return 0.0;
 		}
 
-		currentRepLock.lock();
-		final Double goal = currentReport
-				.getCategoryProfile(Categories.ALL.name()).getDemand()
-				.getIntegral(start, end);
+		final Double goal = report.getCategoryProfile(Categories.ALL)
+				.getDemand().getIntegral(start, end);
 		final Double actual = aggregate
-				.getCategoryProfile(Categories.ALL.name()).getDemand()
+				.getCategoryProfile(Categories.ALL).getDemand()
 				.getIntegral(start, end);
-		currentRepLock.unlock();
 
-		long seconds = new Duration(now, end).getStandardSeconds();
+		long seconds = (end - now) / 1000;
 		if (seconds <= 0) {
 			seconds = 1;
 		}
@@ -393,18 +517,29 @@ public abstract class GraphAgent extends Agent {
 	 * @return the flex up
 	 */
 	public Double getFlexUp(final DateTime now, final PowerProfile aggregate) {
-		if (currentReport == null) {
+		return getFlexUp(now.getMillis(), aggregate);
+	}
+
+	/**
+	 * Gets the flex up.
+	 *
+	 * @param now
+	 *            the now, in milliseconds since the epoch
+	 * @param aggregate
+	 *            the aggregate
+	 * @return the flex up
+	 */
+	public Double getFlexUp(final long now, final PowerProfile aggregate) {
+		if (currentReport.get() == null) {
 			return 0.0;
 		}
 
-		currentRepLock.lock();
 		final Double actual = aggregate
-				.getCategoryProfile(Categories.ALL.name()).getDemand()
+				.getCategoryProfile(Categories.ALL).getDemand()
 				.getValueAt(now);
 
-		final Double max = aggregate.getCategoryProfile(Categories.ALL.name())
+		final Double max = aggregate.getCategoryProfile(Categories.ALL)
 				.getExpectedFlexibilityMaxInWatts().getValueAt(now);
-		currentRepLock.unlock();
 
 		return max - actual;
 	}
@@ -419,17 +554,28 @@ public abstract class GraphAgent extends Agent {
 	 * @return the flex down
 	 */
 	public Double getFlexDown(final DateTime now, final PowerProfile aggregate) {
-		if (currentReport == null) {
+		return getFlexDown(now.getMillis(), aggregate);
+	}
+
+	/**
+	 * Gets the flex down.
+	 *
+	 * @param now
+	 *            the now, in milliseconds since the epoch
+	 * @param aggregate
+	 *            the aggregate
+	 * @return the flex down
+	 */
+	public Double getFlexDown(final long now, final PowerProfile aggregate) {
+		if (currentReport.get() == null) {
 			return 0.0;
 		}
 
-		currentRepLock.lock();
 		final Double actual = aggregate
-				.getCategoryProfile(Categories.ALL.name()).getDemand()
+				.getCategoryProfile(Categories.ALL).getDemand()
 				.getValueAt(now);
-		final Double min = aggregate.getCategoryProfile(Categories.ALL.name())
+		final Double min = aggregate.getCategoryProfile(Categories.ALL)
 				.getExpectedFlexibilityMinInWatts().getValueAt(now);
-		currentRepLock.unlock();
 
 		return min - actual;
 	}
@@ -442,16 +588,24 @@ public abstract class GraphAgent extends Agent {
 	 * @return the goal
 	 */
 	protected Double getGoal(final DateTime now) {
-		if (currentReport == null) {
+		return getGoal(now.getMillis());
+	}
+
+	/**
+	 * Gets the goal.
+	 *
+	 * @param now
+	 *            the now, in milliseconds since the epoch
+	 * @return the goal
+	 */
+	protected Double getGoal(final long now) {
+		final PowerProfile report = currentReport.get();
+		if (report == null) {
 			return 0.0;
 		}
-		currentRepLock.lock();
-		currentReport.calcAll();
-		final Double goal = currentReport
-				.getCategoryProfile(Categories.ALL.name()).getDemand()
+		// Published reports are calculated, see updateCurrentReport
+		return report.getCategoryProfile(Categories.ALL).getDemand()
 				.getValueAt(now);
-		currentRepLock.unlock();
-		return goal;
 	}
 
 	/**
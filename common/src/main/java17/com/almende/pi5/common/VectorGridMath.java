@@ -0,0 +1,67 @@
+/*
+ * Copyright: Almende B.V. (2016), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.pi5.common;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of {@link GridMath}, using the jdk.incubator.vector
+ * module. Only built by the "vector" profile; loaded by
+ * {@link GridMath#INSTANCE} when available.
+ */
+final class VectorGridMath extends GridMath {
+	private static final VectorSpecies<Double>	SPECIES	= DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	void apply(final Op op, final double[] target, final int targetFrom,
+			final double[] source, final int sourceFrom, final int length) {
+		final int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			final DoubleVector left = DoubleVector.fromArray(SPECIES, target,
+					targetFrom + i);
+			final DoubleVector right = DoubleVector.fromArray(SPECIES, source,
+					sourceFrom + i);
+			apply(op, left, right).intoArray(target, targetFrom + i);
+		}
+		for (; i < length; i++) {
+			target[targetFrom + i] = apply(op, target[targetFrom + i],
+					source[sourceFrom + i]);
+		}
+	}
+
+	@Override
+	void apply(final Op op, final double[] target, final int from,
+			final int length, final double value) {
+		final DoubleVector right = DoubleVector.broadcast(SPECIES, value);
+		final int bound = SPECIES.loopBound(length);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			final DoubleVector left = DoubleVector.fromArray(SPECIES, target,
+					from + i);
+			apply(op, left, right).intoArray(target, from + i);
+		}
+		for (; i < length; i++) {
+			target[from + i] = apply(op, target[from + i], value);
+		}
+	}
+
+	private static DoubleVector apply(final Op op, final DoubleVector left,
+			final DoubleVector right) {
+		switch (op) {
+			case ADD:
+				return left.add(right);
+			case MINUS:
+				return left.sub(right);
+			case MULTI:
+				return left.mul(right);
+			case MAX:
+				return left.max(right);
+			default:
+				return left.min(right);
+		}
+	}
+}
@@ -5,6 +5,10 @@
 package com.almende.pi5.common;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 
@@ -14,6 +18,7 @@ import org.junit.Test;
 
 import com.almende.util.jackson.JOM;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class TestPT.
@@ -114,4 +119,783 @@ public class TestPT extends TestCase {
 		assertEquals(15.0, test5.getValueAt(now.plus(1001)));
 		assertEquals(0.0, test5.getValueAt(now.plus(10000)));
 	}
+
+	/**
+	 * Test point lookup, insertion and bulk appending.
+	 */
+	@Test
+	public void testLookup() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine test = new PowerTimeLine(start);
+		test.appendSorted(new long[] { 0, 1000, 2000, 5000 }, new double[] {
+				10, 20, 30, 40 });
+		test.addValueAt(start.plus(3000), 35);
+		test.addValueAt(start.plus(1000), 25);
+		test.addValueAt(start.minus(1000), 5);
+
+		assertEquals(
+				"{\"timestamp\":1451606400000,\"series\":[{\"value\":5.0,\"offset\":-1000},{\"value\":10.0,\"offset\":0},{\"value\":25.0,\"offset\":1000},{\"value\":30.0,\"offset\":2000},{\"value\":35.0,\"offset\":3000},{\"value\":40.0,\"offset\":5000}]}",
+				test.toString());
+		assertEquals(0.0, test.getValueAt(start.minus(1001)));
+		assertEquals(5.0, test.getValueAt(start.minus(1)));
+		assertEquals(25.0, test.getValueAt(start.plus(1000)));
+		assertEquals(35.0, test.getValueAt(start.plus(4999)));
+		assertEquals(40.0, test.getValueAt(start.plus(100000)));
+		final long base = start.getMillis();
+		assertEquals(35.0, test.getValueAt(base + 4999));
+		assertEquals(test.getIntegral(start, start.plus(4000)),
+				test.getIntegral(base, base + 4000));
+		assertEquals(test.clone().zeroBetween(start, start.plus(1500))
+				.toString(), test.clone().zeroBetween(base, base + 1500)
+				.toString());
+
+		try {
+			test.appendSorted(new long[] { 5000 }, new double[] { 50 });
+			fail("Appending before the end should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test summing many timelines in one pass.
+	 */
+	@Test
+	public void testSum() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine first = new PowerTimeLine(start).appendSorted(
+				new long[] { 0, 1000, 2000 }, new double[] { 10, 20, 10 });
+		final PowerTimeLine second = new PowerTimeLine(start.plus(1000))
+				.appendSorted(new long[] { 0, 1000 }, new double[] { -10, 0 });
+		final PowerTimeLine third = new PowerTimeLine(start);
+
+		final List<PowerTimeLine> lines = Arrays.asList(first, second, third);
+		assertEquals(
+				"{\"timestamp\":1451606400000,\"series\":[{\"value\":10.0,\"offset\":0}]}",
+				PowerTimeLine.sum(start, lines).toString());
+		assertEquals(new PowerTimeLine(start).add(first).add(second).compact()
+				.toString(), PowerTimeLine.sum(start, lines).toString());
+		assertEquals(new PowerTimeLine(start).add(first).add(second).compact()
+				.toString(), new PowerTimeLine(start).addCompact(first)
+				.addCompact(second).toString());
+		assertEquals(
+				"{\"timestamp\":1451606400000,\"series\":[{\"value\":10.0,\"offset\":0},{\"value\":20.0,\"offset\":1000},{\"value\":10.0,\"offset\":2000}]}",
+				PowerTimeLine.maxOf(start, lines).toString());
+		assertEquals(
+				"{\"timestamp\":1451606400000,\"series\":[{\"value\":0.0,\"offset\":0},{\"value\":-10.0,\"offset\":1000},{\"value\":0.0,\"offset\":2000}]}",
+				PowerTimeLine.minOf(start, lines).toString());
+	}
+
+	/**
+	 * Test (bulk) integrals, before and after changing the timeline.
+	 */
+	@Test
+	public void testIntegrals() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine test = new PowerTimeLine(start).appendSorted(
+				new long[] { 0, 2000, 4000 }, new double[] { 10, 20, 0 });
+
+		assertEquals(40.0, test.getIntegral(start.minus(1000), start.plus(3000)));
+		final double[] buckets = test.getIntegrals(new long[] {
+				start.getMillis() - 1000, start.getMillis() + 1000,
+				start.getMillis() + 3000, start.getMillis() + 5000 });
+		assertEquals(3, buckets.length);
+		assertEquals(10.0, buckets[0]);
+		assertEquals(30.0, buckets[1]);
+		assertEquals(20.0, buckets[2]);
+
+		test.addValueAt(start.plus(1000), 30);
+		assertEquals(60.0, test.getIntegral(start.minus(1000), start.plus(3000)));
+	}
+
+	/**
+	 * Test resampling into fixed steps.
+	 */
+	@Test
+	public void testResample() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine test = new PowerTimeLine(start).appendSorted(
+				new long[] { 0, 500, 1000, 2500 }, new double[] { 10, 20, 30,
+						40 });
+		final String before = test.toString();
+		final Duration second = new Duration(1000);
+
+		assertEquals("[15.0, 30.0, 35.0]", Arrays.toString(test.resample(
+				start, start.plus(3500), second, BucketReducer.MEAN)));
+		assertEquals("[20.0, 30.0, 40.0]", Arrays.toString(test.resample(
+				start, start.plus(3000), second, BucketReducer.MAX)));
+		assertEquals("[10.0, 30.0, 30.0]", Arrays.toString(test.resample(
+				start, start.plus(3000), second, BucketReducer.MIN)));
+		assertEquals("[20.0, 30.0, 40.0]", Arrays.toString(test.resample(
+				start, start.plus(3000), second, BucketReducer.LAST)));
+
+		final double[] target = new double[2];
+		test.resample(start.getMillis() - 1000, 1000, BucketReducer.MEAN,
+				target);
+		assertEquals("[0.0, 15.0]", Arrays.toString(target));
+		assertEquals(before, test.toString());
+	}
+
+	/**
+	 * Test immutable snapshots.
+	 */
+	@Test
+	public void testSnapshot() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine line = new PowerTimeLine(start);
+		final long[] offsets = new long[200];
+		final double[] values = new double[200];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = i * 1000;
+			values[i] = i % 7;
+		}
+		line.appendSorted(offsets, values);
+
+		final ImmutablePowerTimeLine snapshot = line.snapshot();
+		final ImmutablePowerTimeLine edited = snapshot
+				.withZeroBetween(start.plus(50500), start.plus(120000))
+				.withValueAt(start.plus(150000), 42)
+				.withZeroFrom(start.plus(180000));
+		line.zeroBetween(start.plus(50500), start.plus(120000))
+				.addValueAt(start.plus(150000), 42)
+				.zeroFrom(start.plus(180000));
+
+		assertEquals(200, snapshot.size());
+		assertEquals(3.0, snapshot.getValueAt(start.plus(80000)));
+		assertEquals(line.toString(), edited.toString());
+		assertEquals(line.toString(), edited.toMutable().toString());
+		assertEquals(0.0, edited.getValueAt(start.plus(80000)));
+
+		final ImmutablePowerTimeLine moved = edited.withTimestamp(start
+				.plus(1000));
+		assertEquals(-1000, moved.getSeries().get(0).getOffset());
+		// The same edits in milliseconds since the epoch
+		final long base = start.getMillis();
+		assertEquals(edited.toString(), snapshot
+				.withZeroBetween(base + 50500, base + 120000)
+				.withValueAt(base + 150000, 42).withZeroFrom(base + 180000)
+				.toString());
+		assertEquals(moved.toString(), edited.withTimestamp(base + 1000)
+				.toString());
+		assertEquals(edited.withZeroBefore(start.plus(2500))
+				.withMerge(snapshot, start.plus(60000), start.plus(70000))
+				.toString(), edited.withZeroBefore(base + 2500)
+				.withMerge(snapshot, base + 60000, base + 70000).toString());
+		assertEquals(42.0, moved.getValueAt(start.plus(150000)));
+		assertEquals(line.getIntegral(start.plus(10500), start.plus(170000)),
+				edited.getIntegral(start.getMillis() + 10500,
+						start.getMillis() + 170000), 1e-9);
+
+		// Kept until the line changes
+		assertSame(line.snapshot(), line.snapshot());
+		final ImmutablePowerTimeLine before = line.snapshot();
+		line.addValueAt(start.plus(1000), 5);
+		assertNotSame(before, line.snapshot());
+
+		// Edits that leave few points in each chunk don't fragment the line
+		final long[] longOffsets = new long[1000];
+		final double[] longValues = new double[1000];
+		for (int i = 0; i < longOffsets.length; i++) {
+			longOffsets[i] = i * 1000;
+			longValues[i] = i % 7;
+		}
+		ImmutablePowerTimeLine many = ImmutablePowerTimeLine.of(start,
+				longOffsets, longValues, longOffsets.length);
+		for (int i = 0; i < 16; i++) {
+			many = many.withZeroBetween(start.plus(i * 62500 + 3500),
+					start.plus(i * 62500 + 58500));
+		}
+		assertEquals(144, many.size());
+		assertTrue(many.chunkCount() <= 144 / 16);
+		assertEquals(2.0, many.getValueAt(start.plus(2000)));
+
+	}
+
+	/**
+	 * Test lazy expressions against the equivalent chain of operations.
+	 */
+	@Test
+	public void testExpression() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine flex = new PowerTimeLine(start);
+		flex.appendSorted(new long[] { 0, 1000, 2000, 3000, 4000 },
+				new double[] { 10, 30, 5, 5, 20 });
+		final PowerTimeLine demand = new PowerTimeLine(start.plus(500));
+		demand.appendSorted(new long[] { 0, 1000, 2000 }, new double[] { 15,
+				15, 25 });
+
+		final TimeLineExpression expression = flex.expression().max(demand)
+				.window(start.plus(1000), start.plus(3500)).compact();
+		final String before = flex.toString();
+		final PowerTimeLine result = expression.evaluate();
+		assertEquals(before, flex.toString());
+		assertEquals(
+				flex.clone().max(demand).zeroBefore(start.plus(1000))
+						.zeroFrom(start.plus(3500)).compact().toString(),
+				result.toString());
+		assertEquals(
+				"{\"timestamp\":1451606400000,\"series\":[{\"value\":30.0,\"offset\":1000},{\"value\":15.0,\"offset\":2000},{\"value\":25.0,\"offset\":2500},{\"value\":0.0,\"offset\":3500}]}",
+				result.toString());
+
+		assertEquals(new PowerTimeLine(start).add(flex).add(demand)
+				.minus(flex).compact().toString(), new PowerTimeLine(start)
+				.expression().add(flex).add(demand).minus(flex).compact()
+				.evaluate().toString());
+	}
+
+	/**
+	 * Test cursors and sweeps.
+	 */
+	@Test
+	public void testCursor() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final PowerTimeLine demand = new PowerTimeLine(start);
+		demand.appendSorted(new long[] { 0, 1000, 2000 }, new double[] { 10,
+				20, 30 });
+		final PowerTimeLine max = new PowerTimeLine(start.plus(500));
+		max.appendSorted(new long[] { 0, 1000 }, new double[] { 40, 50 });
+
+		final PowerTimeLine.Cursor cursor = demand.cursor();
+		assertEquals(0.0, cursor.valueAt(base - 1));
+		assertEquals(10.0, cursor.valueAt(base));
+		assertEquals(20.0, cursor.valueAt(base + 1500));
+		assertEquals(10.0, cursor.valueAt(base + 500));
+		assertEquals(30.0, cursor.valueAt(base + 5000));
+		assertEquals(demand.getIntegral(start.plus(500), start.plus(2500)),
+				cursor.integralTo(base + 2500) - cursor.integralTo(base + 500));
+
+		final PowerTimeLine.Sweep sweep = new PowerTimeLine.Sweep(demand, max);
+		assertEquals(base, sweep.moveTo(base - 100).nextChange());
+		assertEquals(base + 500, sweep.moveTo(base).nextChange());
+		assertEquals("[20.0, 40.0]", Arrays.toString(sweep.moveTo(base + 1000)
+				.values(new double[2])));
+		assertEquals("[10.0, 20.0]", Arrays.toString(sweep.integrals(
+				new double[2])));
+		assertEquals(Long.MAX_VALUE, sweep.moveTo(base + 2000).nextChange());
+
+		// Far and short moves, forward and backward, on a longer line
+		final PowerTimeLine line = new PowerTimeLine(start);
+		final long[] offsets = new long[1000];
+		final double[] values = new double[1000];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = i * 1000;
+			values[i] = i % 13;
+		}
+		line.appendSorted(offsets, values);
+		final PowerTimeLine.Cursor far = line.cursor();
+		final Random random = new Random(7);
+		for (int i = 0; i < 200; i++) {
+			final long time = base + random.nextInt(1100000) - 50000;
+			assertEquals(line.getValueAt(time), far.valueAt(time));
+			assertEquals(line.getIntegral(base - 100000, time),
+					far.integral(), 1e-6);
+			assertEquals(line.getValueAt(time + 1), far.valueAt(time + 1));
+		}
+
+		// Log lines sweep the timeslot before and after the current one
+		final CategoryProfile cat = new CategoryProfile();
+		cat.setDemand(line);
+		cat.setExpectedFlexibilityMaxInWatts(line.clone().addValueAt(
+				start.plus(3000), 10));
+		cat.setExpectedFlexibilityMinInWatts(new PowerTimeLine(start));
+		final long slot = base + 60000;
+		final LogLine log = LogLine.fromProfiles("a", cat, cat, slot + 500,
+				slot, 30000, true);
+		assertEquals(line.getValueAt(slot + 500), log.getCurrent());
+		assertEquals(line.getIntegral(slot - 30000, slot), log.getDemand());
+		assertEquals(line.getIntegral(slot, slot + 30000),
+				log.getNextRequest(), 1e-9);
+		assertEquals(cat.getExpectedFlexibilityMaxInWatts().getIntegral(slot,
+				slot + 30000), log.getNextMax(), 1e-9);
+	}
+
+	/**
+	 * Test dense grid timelines.
+	 */
+	@Test
+	public void testGrid() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final PowerTimeLine first = new PowerTimeLine(start);
+		first.appendSorted(new long[] { 0, 2000, 3000 }, new double[] { 10,
+				20, 30 });
+		final PowerTimeLine second = new PowerTimeLine(start.plus(1000));
+		second.appendSorted(new long[] { 0, 1000 }, new double[] { 1, 2 });
+
+		final GridTimeLine grid = GridTimeLine.fromTimeLine(first, 1000);
+		assertEquals("[10.0, 10.0, 20.0, 30.0]",
+				Arrays.toString(grid.getValues()));
+		assertEquals(-1, grid.slotOf(base - 1));
+		assertEquals(0.0, grid.getValueAt(base - 1));
+		assertEquals(30.0, grid.getValueAt(base + 10000));
+		assertNull(GridTimeLine.fromTimeLine(first, 3000));
+
+		final List<CategoryProfile> profiles = new ArrayList<CategoryProfile>();
+		for (final PowerTimeLine line : Arrays.asList(first, second)) {
+			final CategoryProfile profile = new CategoryProfile();
+			profile.setDemand(line);
+			profiles.add(profile);
+		}
+		final CategoryProfile sum = CategoryProfile.sumLine(
+				CategoryProfile.DEMAND, start, profiles, 1000);
+		assertEquals("[10.0, 11.0, 22.0, 32.0]",
+				Arrays.toString(sum.getDemandGrid(1000).getValues()));
+		sum.materialize(start.minus(1000));
+		assertEquals("[1000.0:10.0, 2000.0:11.0, 3000.0:22.0, 4000.0:32.0]",
+				series(sum.getDemand()));
+		assertEquals(PowerTimeLine.sum(start, Arrays.asList(first, second))
+				.getIntegral(start, start.plus(5000)), sum.getDemand()
+				.getIntegral(start, start.plus(5000)));
+		assertEquals(0, sum.getExpectedFlexibilityMaxInWatts().getSeries()
+				.size());
+
+		grid.max(GridTimeLine.fromTimeLine(second, 1000));
+		assertEquals("[10.0, 10.0, 20.0, 30.0]",
+				Arrays.toString(grid.getValues()));
+		grid.minus(new GridTimeLine(base - 1000, 1000, new double[] { 1, 2 }));
+		assertEquals("[-1.0, 8.0, 8.0, 18.0, 28.0]",
+				Arrays.toString(grid.getValues()));
+	}
+
+	/**
+	 * Test the grid math in use (vector when built with the "vector" profile)
+	 * against the scalar implementation, on odd lengths and offsets so the
+	 * tails get covered.
+	 */
+	@Test
+	public void testGridMath() {
+		final GridMath scalar = new GridMath();
+		final Random random = new Random(12);
+		final double[] source = new double[80];
+		for (int i = 0; i < source.length; i++) {
+			source[i] = Math.round(random.nextGaussian() * 1000) / 10.0;
+		}
+		source[5] = -0.0;
+		source[6] = 0.0;
+		for (final GridMath.Op op : GridMath.Op.values()) {
+			for (final int length : new int[] { 0, 1, 3, 7, 13, 33, 67 }) {
+				for (final int offset : new int[] { 0, 1, 5 }) {
+					final double[] expected = new double[source.length];
+					for (int i = 0; i < expected.length; i++) {
+						expected[i] = source[expected.length - 1 - i];
+					}
+					final double[] actual = expected.clone();
+					scalar.apply(op, expected, offset + 2, source, offset,
+							length);
+					GridMath.INSTANCE.apply(op, actual, offset + 2, source,
+							offset, length);
+					assertEquals(op + "/" + length + "/" + offset,
+							Arrays.toString(expected), Arrays.toString(actual));
+
+					scalar.apply(op, expected, offset, length, -0.0);
+					GridMath.INSTANCE.apply(op, actual, offset, length, -0.0);
+					scalar.apply(op, expected, offset, length, 2.5);
+					GridMath.INSTANCE.apply(op, actual, offset, length, 2.5);
+					assertEquals(op + "/" + length + "/" + offset,
+							Arrays.toString(expected), Arrays.toString(actual));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test compacting within tolerances.
+	 */
+	@Test
+	public void testLossyCompact() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine line = new PowerTimeLine(start);
+		line.appendSorted(new long[] { 0, 1000, 2000, 3000, 4000, 5000 },
+				new double[] { 100, 101, 99, 100.5, 150, 150.5 });
+
+		final long hour = 60 * 60 * 1000;
+		assertEquals(line.clone().compact().toString(), line.clone()
+				.compact(0, 0, hour).toString());
+		// Small deviations merge, the jump and the last point stay
+		assertEquals("[0.0:100.0, 4000.0:150.0, 5000.0:150.5]",
+				series(line.clone().compact(2, 10, hour)));
+		// The energy error adds up over the whole timeslot
+		assertEquals(
+				"[0.0:100.0, 2000.0:99.0, 3000.0:100.5, 4000.0:150.0, 5000.0:150.5]",
+				series(line.clone().compact(2, 1.5, hour)));
+		assertEquals("[0.0:100.0, 4000.0:150.0, 5000.0:150.5]",
+				series(line.clone().compact(2, 1.5, 2000)));
+		// Default timeslots of 15 minutes
+		assertEquals(series(line.clone().compact(2, 1.5,
+				PowerTimeLine.DEFAULT_SLOT_LENGTH)), series(line.clone()
+				.compact(2, 1.5)));
+
+		final PowerProfile profile = new PowerProfile(start);
+		profile.getCategoryProfile(Categories.HVAC.name()).setDemand(line);
+		profile.getCategoryProfile(Categories.LIGHTING.name()).setDemand(
+				new PowerTimeLine(start).appendSorted(new long[] { 0 },
+						new double[] { 10 }));
+		final PowerProfile compacted = profile.compacted(2, 10, hour);
+		assertEquals(3, compacted.getCategoryProfile(Categories.HVAC.name())
+				.getDemand().getSeries().size());
+		// ALL is the sum of the compacted categories
+		assertEquals("[0.0:110.0, 4000.0:160.0, 5000.0:160.5]",
+				series(compacted.getCategoryProfile(Categories.ALL.name())
+						.getDemand()));
+		assertEquals(series(compacted.getCategoryProfile(Categories.ALL.name())
+				.getDemand()), series(profile.compacted(2, 10).getCategoryProfile(
+				Categories.ALL.name()).getDemand()));
+		assertEquals(6, line.getSeries().size());
+	}
+
+	private static String series(final PowerTimeLine line) {
+		final List<String> result = new ArrayList<String>();
+		for (final PowerTime point : line.getSeries()) {
+			result.add((double) point.getOffset() + ":" + point.getValue());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Test the cached summary statistics.
+	 */
+	@Test
+	public void testSummary() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine line = new PowerTimeLine(start);
+		assertEquals(0, line.getSummary().getSize());
+		assertEquals(0.0, line.getSummary().getMax());
+
+		line.appendSorted(new long[] { 0, 1000, 3000 }, new double[] { 10,
+				-20, 30 });
+		final PowerTimeLine.Summary summary = line.getSummary();
+		assertSame(summary, line.getSummary());
+		assertEquals(3, summary.getSize());
+		assertEquals(-20.0, summary.getMin());
+		assertEquals(30.0, summary.getMax());
+		assertEquals(-30.0, summary.getIntegral());
+		assertEquals(-10.0, summary.getMean());
+		assertEquals(3000, summary.getLastOffset());
+
+		line.addValueAt(start.plus(4000), 50);
+		assertEquals(50.0, line.getSummary().getMax());
+		line.withTimestamp(start.plus(1000));
+		assertEquals(-1000, line.getSummary().getFirstOffset());
+		assertEquals(0.0, line.getSummary().getIntegral());
+	}
+
+	/**
+	 * Test binary operations limited to a window.
+	 */
+	@Test
+	public void testWindowed() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final PowerTimeLine demand = new PowerTimeLine(start);
+		demand.appendSorted(new long[] { 0, 1000, 2000, 3000, 4000 },
+				new double[] { 10, 20, 30, 40, 50 });
+		final PowerTimeLine diff = new PowerTimeLine(start);
+		diff.appendSorted(new long[] { 500, 3000 }, new double[] { 5, 0 });
+
+		assertEquals(demand.clone().add(diff).compact().toString(), demand
+				.clone().add(diff, base + 500, base + 3000).compact()
+				.toString());
+		assertEquals("[0.0:10.0, 1000.0:5.0, 2000.0:5.0, 3000.0:40.0, "
+				+ "4000.0:50.0]", series(demand.clone().min(diff, base + 1000,
+				base + 3000)));
+		assertEquals("[0.0:10.0, 1000.0:20.0, 1500.0:25.0, 2000.0:35.0, "
+				+ "2500.0:30.0, 3000.0:40.0, 4000.0:50.0]", series(demand
+				.clone().add(diff, base + 1500, base + 2500)));
+	}
+
+	/**
+	 * Test clamping and windowing in one sweep.
+	 */
+	@Test
+	public void testClamp() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final PowerTimeLine demand = new PowerTimeLine(start);
+		demand.appendSorted(new long[] { 0, 1000, 2000, 3000 }, new double[] {
+				10, 40, 20, 20 });
+		final PowerTimeLine max = new PowerTimeLine(start);
+		max.appendSorted(new long[] { 0 }, new double[] { 30 });
+		final PowerTimeLine min = new PowerTimeLine(start);
+		min.appendSorted(new long[] { 0 }, new double[] { 15 });
+
+		assertEquals("[500.0:15.0, 1000.0:30.0, 2000.0:20.0, 2500.0:0.0]",
+				series(demand.clamp(min, max, base + 500, base + 2500)));
+		assertEquals(demand.clone().max(min).zeroBefore(start)
+				.zeroFrom(start.plus(4000)).compact().toString(), demand
+				.clamp(min, null, base, base + 4000).toString());
+
+		final CategoryProfile bounds = new CategoryProfile();
+		bounds.setExpectedFlexibilityMaxInWatts(max);
+		bounds.setExpectedFlexibilityMinInWatts(min);
+		final CategoryProfile proposal = bounds.clampProposal(demand, base,
+				base + 2500);
+		assertEquals("[0.0:10.0, 1000.0:40.0, 2000.0:20.0, 2500.0:0.0]",
+				series(proposal.getDemand()));
+		assertEquals("[0.0:30.0, 1000.0:40.0, 2000.0:30.0, 2500.0:0.0]",
+				series(proposal.getExpectedFlexibilityMaxInWatts()));
+		assertEquals("[0.0:10.0, 1000.0:15.0, 2500.0:0.0]",
+				series(proposal.getExpectedFlexibilityMinInWatts()));
+	}
+
+	/**
+	 * Test the category storage of power profiles.
+	 *
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	@Test
+	public void testProfileCategories() throws JsonProcessingException {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerTimeLine line = new PowerTimeLine(start);
+		line.appendSorted(new long[] { 0, 1000 }, new double[] { 10, 20 });
+		final PowerProfile profile = new PowerProfile(start);
+		profile.getCategoryProfile(Categories.HVAC).setDemand(line);
+		profile.calcAll();
+
+		assertNull(profile.peekCategoryProfile(Categories.LIGHTING));
+		// The JSON still has all categories, with empty lines
+		assertEquals(6, profile.getReports().size());
+		assertEquals(0, profile.getReports().get(Categories.LIGHTING.name())
+				.getDemand().size());
+		assertNull(profile.peekCategoryProfile(Categories.LIGHTING));
+		assertEquals(series(line), series(profile.getCategoryProfile(
+				Categories.ALL.name()).getDemand()));
+
+		final PowerProfile copy = JOM.getInstance().treeToValue(
+				JOM.getInstance().valueToTree(profile), PowerProfile.class);
+		assertNull(copy.peekCategoryProfile(Categories.LIGHTING));
+		assertEquals(series(line), series(copy.peekCategoryProfile(
+				Categories.HVAC).getDemand()));
+
+		// Unknown categories are ignored
+		final ObjectNode json = JOM.getInstance().valueToTree(profile);
+		((ObjectNode) json.get("reports")).set("UNKNOWN",
+				json.get("reports").get(Categories.HVAC.name()));
+		final PowerProfile unknown = JOM.getInstance().treeToValue(json,
+				PowerProfile.class);
+		assertEquals(6, unknown.getReports().size());
+		assertEquals(0, unknown.getCategoryProfile("UNKNOWN").getDemand()
+				.size());
+		unknown.setCategoryReport("UNKNOWN", copy.getCategoryProfile("HVAC"));
+		assertEquals(6, unknown.getReports().size());
+
+		// An empty category of the other profile is merged as zero
+		profile.add(copy).merge(new PowerProfile(start), start.getMillis(),
+				start.getMillis() + 500);
+		assertNull(profile.peekCategoryProfile(Categories.LIGHTING));
+		assertEquals("[0.0:0.0, 500.0:20.0, 1000.0:40.0]", series(profile
+				.getCategoryProfile(Categories.ALL).getDemand()));
+	}
+
+	/**
+	 * Test that calcAll only recalculates changed lines.
+	 */
+	@Test
+	public void testCalcAllDirty() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerProfile profile = new PowerProfile(start);
+		profile.getCategoryProfile(Categories.HVAC).getDemand()
+				.addValueAt(start.getMillis(), 10);
+		profile.getCategoryProfile(Categories.OTHER).getDemand()
+				.addValueAt(start.getMillis() + 1000, 5);
+		final CategoryProfile all = profile.calcAll().getCategoryProfile(
+				Categories.ALL);
+		final PowerTimeLine demand = all.getDemand();
+		final PowerTimeLine max = all.getExpectedFlexibilityMaxInWatts();
+		assertEquals("[0.0:10.0, 1000.0:15.0]", series(demand));
+
+		// Without changes, nothing is recalculated
+		assertSame(demand, profile.calcAll().getCategoryProfile(Categories.ALL)
+				.getDemand());
+
+		// A changed demand only recalculates the demand
+		profile.getCategoryProfile(Categories.HVAC).getDemand()
+				.addValueAt(start.getMillis() + 2000, 20);
+		profile.calcAll();
+		assertEquals("[0.0:10.0, 1000.0:15.0, 2000.0:25.0]", series(all
+				.getDemand()));
+		assertSame(max, all.getExpectedFlexibilityMaxInWatts());
+
+		// A changed ALL line is recalculated as well
+		all.getDemand().zeroFrom(start.getMillis());
+		profile.calcAll();
+		assertEquals("[0.0:10.0, 1000.0:15.0, 2000.0:25.0]", series(all
+				.getDemand()));
+	}
+
+	/**
+	 * Test that a cloned profile can be changed without changing the
+	 * original, as done for new versions of published reports.
+	 */
+	@Test
+	public void testProfileClone() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final PowerProfile profile = new PowerProfile(start);
+		profile.getCategoryProfile(Categories.HVAC).getDemand()
+				.addValueAt(start.getMillis(), 10);
+		profile.calcAll();
+		final String before = series(profile.getCategoryProfile(
+				Categories.ALL).getDemand());
+
+		final PowerProfile copy = profile.clone();
+		assertNull(copy.peekCategoryProfile(Categories.LIGHTING));
+		copy.getCategoryProfile(Categories.HVAC).getDemand()
+				.addValueAt(start.getMillis() + 1000, 20);
+		copy.calcAll();
+		assertEquals("[0.0:10.0, 1000.0:20.0]", series(copy
+				.getCategoryProfile(Categories.ALL).getDemand()));
+		assertEquals(before, series(profile.getCategoryProfile(
+				Categories.ALL).getDemand()));
+	}
+
+	/**
+	 * Test profile deltas.
+	 *
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	@Test
+	public void testProfileDelta() throws JsonProcessingException {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final PowerTimeLine line = new PowerTimeLine(start);
+		line.appendSorted(new long[] { 0, 1000, 2000, 3000, 4000 },
+				new double[] { 10, 20, 30, 40, 50 });
+		final PowerProfile previous = new PowerProfile(start);
+		previous.getCategoryProfile(Categories.HVAC).setDemand(line);
+		previous.getCategoryProfile(Categories.OTHER).setDemand(line.clone());
+		previous.calcAll();
+
+		final PowerProfile current = previous.clone();
+		current.setCategoryReport(Categories.OTHER, null);
+		current.getCategoryProfile(Categories.HVAC).getDemand()
+				.addValueAt(base + 2000, 35);
+		current.calcAll();
+
+		ProfileDelta delta = current.diff(previous);
+		assertEquals(1, delta.getWindows().size());
+		assertEquals(Arrays.asList(Categories.OTHER.name()),
+				delta.getRemoved());
+		final ProfileDelta.Window window = delta.getWindows().get(0);
+		assertEquals(base + 2000, window.getFrom());
+		assertEquals(base + 3000, window.getUntil());
+		assertEquals("[2000.0:35.0]", series(window.getSeries()));
+
+		delta = JOM.getInstance().treeToValue(
+				JOM.getInstance().valueToTree(delta), ProfileDelta.class);
+		final PowerProfile result = PowerProfile.applyDiff(previous, delta);
+		assertNull(result.peekCategoryProfile(Categories.OTHER));
+		assertEquals(series(current.getCategoryProfile(Categories.ALL)
+				.getDemand()), series(result.getCategoryProfile(
+				Categories.ALL).getDemand()));
+		assertEquals(30.0, previous.getCategoryProfile(Categories.HVAC)
+				.getDemand().getValueAt(base + 2000));
+		assertEquals(0, current.diff(current).getWindows().size());
+	}
+
+	/**
+	 * Test the packed category profile against the separate lines.
+	 *
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	@Test
+	public void testPacked() throws JsonProcessingException {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final long base = start.getMillis();
+		final CategoryProfile first = new CategoryProfile();
+		first.getDemand().setTimestamp(start);
+		first.getDemand().appendSorted(new long[] { 0, 1000, 2000 },
+				new double[] { 10, 20, 30 });
+		first.getExpectedFlexibilityMaxInWatts().setTimestamp(start);
+		first.getExpectedFlexibilityMaxInWatts().appendSorted(
+				new long[] { 500, 2000 }, new double[] { 40, 50 });
+		first.getExpectedFlexibilityMinInWatts().setTimestamp(start);
+		final CategoryProfile second = new CategoryProfile();
+		second.getDemand().setTimestamp(start);
+		second.getDemand().appendSorted(new long[] { 1000, 3000 },
+				new double[] { 5, 0 });
+		second.getExpectedFlexibilityMinInWatts().setTimestamp(start);
+		second.getExpectedFlexibilityMinInWatts().appendSorted(
+				new long[] { 1500 }, new double[] { -5 });
+
+		final PackedCategoryProfile packed = PackedCategoryProfile.of(first);
+		assertEquals(4, packed.size());
+		assertEquals(20.0,
+				packed.getValueAt(CategoryProfile.DEMAND, base + 1500));
+		final String json = JOM.getInstance().valueToTree(first).toString();
+		assertEquals(json, JOM.getInstance().valueToTree(packed).toString());
+		assertEquals(json,
+				JOM.getInstance().valueToTree(packed.toCategoryProfile())
+						.toString());
+
+		final PackedCategoryProfile added = PackedCategoryProfile.of(first)
+				.add(PackedCategoryProfile.of(second));
+		final PackedCategoryProfile merged = PackedCategoryProfile.of(first)
+				.merge(PackedCategoryProfile.of(second), base + 1000,
+						base + 2500);
+		for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN; kind++) {
+			final PowerTimeLine mine = first.getLine(kind);
+			final PowerTimeLine theirs = second.getLine(kind);
+			assertEquals(series(mine.clone().addCompact(theirs)),
+					series(added.line(kind)));
+			assertEquals(series(mine.clone()
+					.merge(theirs, base + 1000, base + 2500).compact()),
+					series(merged.line(kind)));
+		}
+		assertEquals("[0.0:10.0, 1000.0:25.0, 2000.0:35.0, 3000.0:30.0]",
+				series(added.line(CategoryProfile.DEMAND)));
+	}
+
+	/**
+	 * Test the parallel sum of many profiles against a serial sum.
+	 */
+	@Test
+	public void testSumAll() {
+		final DateTime start = DateTime.parse("2016-01-01T00:00:00Z");
+		final Categories[] cats = { Categories.HVAC, Categories.LIGHTING,
+				Categories.OTHER };
+		final List<PowerProfile> children = new ArrayList<PowerProfile>();
+		final PowerProfile expected = new PowerProfile(start);
+		for (int i = 0; i < 150; i++) {
+			final PowerProfile child = new PowerProfile(start);
+			for (int c = 0; c <= i % cats.length; c++) {
+				final CategoryProfile cat = child.getCategoryProfile(cats[c]);
+				cat.getDemand().appendSorted(
+						new long[] { 0, 1000 * (1 + i % 7), 15000 },
+						new double[] { i, 2 * i, 0 });
+				cat.getExpectedFlexibilityMaxInWatts().appendSorted(
+						new long[] { 500 * (i % 5) }, new double[] { c });
+			}
+			children.add(child);
+			expected.add(child);
+		}
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final PowerProfile sum = PowerProfile.sumAll(children, pool);
+			assertEquals(start, sum.getTimestamp());
+			for (final Categories cat : Categories.values()) {
+				final CategoryProfile mine = sum.peekCategoryProfile(cat);
+				final CategoryProfile theirs = expected.peekCategoryProfile(cat);
+				if (theirs == null) {
+					assertNull(mine);
+					continue;
+				}
+				for (int kind = CategoryProfile.DEMAND; kind <= CategoryProfile.MIN; kind++) {
+					assertEquals(series(theirs.getLine(kind)),
+							series(mine.getLine(kind)));
+				}
+			}
+			// ALL is summed with the categories, calcAll keeps it
+			final PowerTimeLine all = sum.getCategoryProfile(Categories.ALL)
+					.getDemand();
+			assertSame(all, sum.calcAll().getCategoryProfile(Categories.ALL)
+					.getDemand());
+			assertNull(PowerProfile.sumAll(new ArrayList<PowerProfile>(), pool)
+					.peekCategoryProfile(Categories.HVAC));
+		} finally {
+			pool.shutdown();
+		}
+	}
 }
@@ -20,9 +20,9 @@ import com.almende.eve.protocol.jsonrpc.annotation.Access;
 import com.almende.eve.protocol.jsonrpc.annotation.AccessType;
 import com.almende.eve.protocol.jsonrpc.annotation.Name;
 import com.almende.pi5.common.Categories;
+import com.almende.pi5.common.CategoryProfile;
 import com.almende.pi5.common.ControlMode;
 import com.almende.pi5.common.PowerProfile;
-import com.almende.pi5.common.PowerTime;
 import com.almende.pi5.common.PowerTimeLine;
 import com.almende.pi5.common.agents.GraphAgent;
 import com.almende.util.TypeUtil;
@@ -422,34 +422,45 @@ public class DERSimAgent extends GraphAgent {
 		final PowerTimeLine demand = new PowerTimeLine(currentTimeslot);
 		final PowerTimeLine max = new PowerTimeLine(currentTimeslot);
 		final PowerTimeLine min = new PowerTimeLine(currentTimeslot);
-		final String cat = getCategory().name();
+		final Categories cat = getCategory();
 		final DateTime now = DateTime.now();
 
 		// Get current report and add the new info/ remove past
-		int offset = -TIMESLOTLENGTH;
 		long endOffset = new Duration(currentTimeslot,
 				currentTimeslot.plus(forecastHorizon)).getMillis();
-		while (offset < endOffset) {
-			final Double consumption = getConsumption(currentTimeslot
-					.plus(offset));
-			demand.getSeries().add(new PowerTime(offset, consumption));
-			max.getSeries().add(
-					new PowerTime(offset, getMaxFlexibility(consumption,
-							getBaseConsumption(currentTimeslot.plus(offset)))));
-			min.getSeries().add(
-					new PowerTime(offset, getMinFlexibility(consumption,
-							getBaseConsumption(currentTimeslot.plus(offset)))));
-			offset += TIMESLOTLENGTH;
+		final int count = (int) Math.max(0,
+				(endOffset + 2L * TIMESLOTLENGTH - 1) / TIMESLOTLENGTH);
+		final long[] offsets = new long[count];
+		final double[] demandValues = new double[count];
+		final double[] maxValues = new double[count];
+		final double[] minValues = new double[count];
+		for (int i = 0; i < count; i++) {
+			final long offset = (i - 1L) * TIMESLOTLENGTH;
+			final DateTime time = currentTimeslot.plus(offset);
+			final double consumption = getConsumption(time);
+			final double baseConsumption = getBaseConsumption(time);
+			offsets[i] = offset;
+			demandValues[i] = consumption;
+			maxValues[i] = getMaxFlexibility(consumption, baseConsumption);
+			minValues[i] = getMinFlexibility(consumption, baseConsumption);
 		}
-		if (currentReport != null) {
-			demand.merge(currentReport.getCategoryProfile(cat).getDemand(),
-					currentTimeslot.minus(TIMESLOTLENGTH), now);
-			max.merge(currentReport.getCategoryProfile(cat)
-					.getExpectedFlexibilityMaxInWatts(), currentTimeslot
-					.minus(TIMESLOTLENGTH), now);
-			min.merge(currentReport.getCategoryProfile(cat)
-					.getExpectedFlexibilityMinInWatts(), currentTimeslot
-					.minus(TIMESLOTLENGTH), now);
+		demand.appendSorted(offsets, demandValues);
+		max.appendSorted(offsets, maxValues);
+		min.appendSorted(offsets, minValues);
+		final PowerProfile report = currentReport.get();
+		if (report != null) {
+			final long historyStart = currentTimeslot.getMillis()
+					- TIMESLOTLENGTH;
+			// Don't add the category to the published report if it is missing
+			CategoryProfile previous = report.peekCategoryProfile(cat);
+			if (previous == null) {
+				previous = new CategoryProfile();
+			}
+			demand.merge(previous.getDemand(), historyStart, now.getMillis());
+			max.merge(previous.getExpectedFlexibilityMaxInWatts(),
+					historyStart, now.getMillis());
+			min.merge(previous.getExpectedFlexibilityMinInWatts(),
+					historyStart, now.getMillis());
 			LOG.fine("Adding historical data:"
 					+ currentTimeslot.minus(TIMESLOTLENGTH) + " -> " + now);
 		}